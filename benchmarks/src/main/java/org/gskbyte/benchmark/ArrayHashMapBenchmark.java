@@ -0,0 +1,124 @@
+package org.gskbyte.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.gskbyte.collection.ArrayHashMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * ArrayHashMapBenchmark class
+ *
+ * Measures the operations of ArrayHashMap that add work on top of HashMap: keeping the
+ * key list while putting, indexed access, iteration in insertion order and removal by index.
+ * Every benchmark processes the whole map, so scores are per map, not per element.
+ * */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ArrayHashMapBenchmark
+{
+
+@Param({"100", "10000"})
+public int size;
+
+private String [] keys;
+private ArrayHashMap<String, Integer> map;
+private ArrayHashMap<String, Integer> drainedMap;
+
+@Setup
+public void setup()
+{
+    keys = Keys.Strings(size);
+    map = Fill(new ArrayHashMap<String, Integer>(), keys);
+}
+
+@Setup(Level.Invocation)
+public void setupDrainedMap()
+{
+    drainedMap = Fill(new ArrayHashMap<String, Integer>(size), keys);
+}
+
+private static ArrayHashMap<String, Integer> Fill(ArrayHashMap<String, Integer> map, String [] keys)
+{
+    for(int i=0; i<keys.length; ++i) {
+        map.put(keys[i], i);
+    }
+    return map;
+}
+
+@Benchmark
+public ArrayHashMap<String, Integer> put()
+{ return Fill(new ArrayHashMap<String, Integer>(), keys); }
+
+@Benchmark
+public ArrayHashMap<String, Integer> putPresized()
+{ return Fill(new ArrayHashMap<String, Integer>(size), keys); }
+
+@Benchmark
+public void get(Blackhole bh)
+{
+    for(String key : keys) {
+        bh.consume(map.get(key));
+    }
+}
+
+@Benchmark
+public void getAt(Blackhole bh)
+{
+    for(int i=0; i<size; ++i) {
+        bh.consume(map.getAt(i));
+    }
+}
+
+@Benchmark
+public void iterate(Blackhole bh)
+{
+    for(Integer value : map) {
+        bh.consume(value);
+    }
+}
+
+@Benchmark
+public void iterateValuesList(Blackhole bh)
+{
+    for(Integer value : map.valuesList()) {
+        bh.consume(value);
+    }
+}
+
+/** Removes all elements from the front, the worst case for the key list */
+@Benchmark
+public ArrayHashMap<String, Integer> removeAtFront()
+{
+    while(!drainedMap.isEmpty()) {
+        drainedMap.removeAt(0);
+    }
+    return drainedMap;
+}
+
+/** Removes all elements from the back, the best case for the key list */
+@Benchmark
+public ArrayHashMap<String, Integer> removeAtBack()
+{
+    for(int i=drainedMap.size()-1; i>=0; --i) {
+        drainedMap.removeAt(i);
+    }
+    return drainedMap;
+}
+
+}
@@ -0,0 +1,93 @@
+package org.gskbyte.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.gskbyte.collection.DoubleSparseArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * DoubleSparseArrayBenchmark class
+ *
+ * Measures forward lookups (binary search in the sparse array), reverse lookups (hash map)
+ * and insertion in random key order, which shifts the sparse array's contents.
+ * Every benchmark processes all keys, so scores are per map, not per element.
+ * */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DoubleSparseArrayBenchmark
+{
+
+@Param({"100", "10000"})
+public int size;
+
+private int [] keys;
+private String [] values;
+private DoubleSparseArray<String> array;
+
+@Setup
+public void setup()
+{
+    keys = Keys.SparseInts(size);
+    values = new String[size];
+    for(int i=0; i<size; ++i) {
+        values[i] = "value_" + keys[i];
+    }
+    array = Fill(new DoubleSparseArray<String>(), keys, values);
+}
+
+private static DoubleSparseArray<String> Fill(DoubleSparseArray<String> array, int [] keys, String [] values)
+{
+    for(int i=0; i<keys.length; ++i) {
+        array.put(keys[i], values[i]);
+    }
+    return array;
+}
+
+@Benchmark
+public DoubleSparseArray<String> put()
+{ return Fill(new DoubleSparseArray<String>(), keys, values); }
+
+@Benchmark
+public DoubleSparseArray<String> putPresized()
+{ return Fill(new DoubleSparseArray<String>(size), keys, values); }
+
+@Benchmark
+public void forwardLookup(Blackhole bh)
+{
+    for(int key : keys) {
+        bh.consume(array.get(key));
+    }
+}
+
+@Benchmark
+public void reverseLookup(Blackhole bh)
+{
+    for(String value : values) {
+        bh.consume(array.getKeyForValue(value));
+    }
+}
+
+@Benchmark
+public void containsValue(Blackhole bh)
+{
+    for(String value : values) {
+        bh.consume(array.containsValue(value));
+    }
+}
+
+}
@@ -0,0 +1,61 @@
+package org.gskbyte.benchmark;
+
+import java.util.Random;
+
+/**
+ * Keys class
+ *
+ * Deterministic input data for the benchmarks, so that runs can be compared.
+ * */
+final class Keys
+{
+
+private static final long SEED = 0x5eed;
+
+private Keys()
+{ }
+
+/**
+ * Returns distinct strings that look like bitmap paths.
+ * */
+static String [] Strings(int count)
+{
+    final String [] keys = new String[count];
+    for(int i=0; i<count; ++i) {
+        keys[i] = "images/bitmap_" + i + ".png";
+    }
+    Shuffle(keys);
+    return keys;
+}
+
+/**
+ * Returns distinct, sparse integers in random order.
+ * */
+static int [] SparseInts(int count)
+{
+    final int [] keys = new int[count];
+    for(int i=0; i<count; ++i) {
+        keys[i] = i * 7 + 3;
+    }
+    final Random random = new Random(SEED);
+    for(int i=count-1; i>0; --i) {
+        final int j = random.nextInt(i + 1);
+        final int tmp = keys[i];
+        keys[i] = keys[j];
+        keys[j] = tmp;
+    }
+    return keys;
+}
+
+private static <T> void Shuffle(T [] array)
+{
+    final Random random = new Random(SEED);
+    for(int i=array.length-1; i>0; --i) {
+        final int j = random.nextInt(i + 1);
+        final T tmp = array[i];
+        array[i] = array[j];
+        array[j] = tmp;
+    }
+}
+
+}
@@ -0,0 +1,141 @@
+package org.gskbyte.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.gskbyte.bitmap.BitmapPool;
+import org.gskbyte.bitmap.LRUBitmapCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import android.graphics.Bitmap;
+
+/**
+ * LRUBitmapCacheBenchmark class
+ *
+ * Measures the sizing and eviction logic of LRUBitmapCache with stand-in bitmaps, which
+ * have dimensions and config but no pixels. The cache fits a quarter of the bitmaps, so
+ * cycling through all of them evicts one bitmap per put.
+ * Every benchmark processes all bitmaps, so scores are per pass, not per bitmap.
+ * */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LRUBitmapCacheBenchmark
+{
+
+/** Typical thumbnail and screen sized bitmaps */
+private static final int [][] BITMAP_SIZES = {{128, 128}, {256, 192}, {480, 320}, {1024, 768}};
+private static final Bitmap.Config [] BITMAP_CONFIGS = {Bitmap.Config.ARGB_8888, Bitmap.Config.RGB_565};
+
+@Param({"64", "1024"})
+public int bitmapCount;
+
+private String [] keys;
+private Bitmap [] bitmaps;
+private LRUBitmapCache<String> cache;
+private LRUBitmapCache<String> pooledCache;
+private int cacheSize;
+
+@Setup
+public void setup()
+{
+    keys = Keys.Strings(bitmapCount);
+    bitmaps = new Bitmap[bitmapCount];
+    long totalSize = 0;
+    for(int i=0; i<bitmapCount; ++i) {
+        final int [] size = BITMAP_SIZES[i % BITMAP_SIZES.length];
+        bitmaps[i] = Bitmap.createBitmap(size[0], size[1], BITMAP_CONFIGS[(i / BITMAP_SIZES.length) % BITMAP_CONFIGS.length]);
+        totalSize += LRUBitmapCache.BitmapMemorySize(bitmaps[i]);
+    }
+
+    cacheSize = (int) (totalSize / 4);
+    cache = new LRUBitmapCache<String>(cacheSize);
+    pooledCache = new LRUBitmapCache<String>(cacheSize);
+    pooledCache.setEvictionPool(new BitmapPool(cacheSize));
+    
+    // keeps the last quarter of the bitmaps
+    for(int i=0; i<bitmapCount; ++i) {
+        cache.put(keys[i], bitmaps[i]);
+    }
+}
+
+@Benchmark
+public void bitmapMemorySize(Blackhole bh)
+{
+    for(Bitmap b : bitmaps) {
+        bh.consume(LRUBitmapCache.BitmapMemorySize(b));
+    }
+}
+
+@Benchmark
+public void configMemorySize(Blackhole bh)
+{
+    for(Bitmap b : bitmaps) {
+        bh.consume(LRUBitmapCache.BitmapMemorySize(b.getWidth(), b.getHeight(), b.getConfig()));
+    }
+}
+
+/** Puts all bitmaps, each one evicting the least recently used ones */
+@Benchmark
+public LRUBitmapCache<String> putEvicting()
+{
+    for(int i=0; i<bitmapCount; ++i) {
+        cache.put(keys[i], bitmaps[i]);
+    }
+    return cache;
+}
+
+@Benchmark
+public LRUBitmapCache<String> putWithinBudgetEvicting()
+{
+    for(int i=0; i<bitmapCount; ++i) {
+        cache.putWithinBudget(keys[i], bitmaps[i]);
+    }
+    return cache;
+}
+
+/** Same as putEvicting, but evicted bitmaps go to a pool, which discards the oldest ones when full */
+@Benchmark
+public LRUBitmapCache<String> putEvictingToPool()
+{
+    for(int i=0; i<bitmapCount; ++i) {
+        pooledCache.put(keys[i], bitmaps[i]);
+    }
+    return pooledCache;
+}
+
+/** Gets all bitmaps in the order they were put: about a quarter of them hit, the rest miss */
+@Benchmark
+public void get(Blackhole bh)
+{
+    for(String key : keys) {
+        bh.consume(cache.get(key));
+    }
+}
+
+/** Shrinks the budget to a quarter and grows it back, evicting three quarters of the cache */
+@Benchmark
+public LRUBitmapCache<String> shrinkBudget()
+{
+    for(int i=0; i<bitmapCount; ++i) {
+        cache.put(keys[i], bitmaps[i]);
+    }
+    cache.setBudget(cacheSize / 4);
+    cache.setBudget(cacheSize);
+    return cache;
+}
+
+}
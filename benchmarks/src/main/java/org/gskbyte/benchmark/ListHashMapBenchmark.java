@@ -0,0 +1,121 @@
+package org.gskbyte.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.gskbyte.collection.ListHashMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ListHashMapBenchmark class
+ *
+ * Measures the bulk operations of ListHashMap, using stand-in items keyed by their id.
+ * The retained collection shares half of its items with the map.
+ * */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ListHashMapBenchmark
+{
+
+/**
+ * Stand-in value object, similar to the models stored in ListHashMaps.
+ * */
+public static final class Item
+{
+    final Integer id;
+    final String name;
+
+    Item(int id)
+    {
+        this.id = id;
+        this.name = "item_" + id;
+    }
+}
+
+public static final class ItemMap
+extends ListHashMap<Integer, Item>
+{
+    private static final long serialVersionUID = 1L;
+
+    public ItemMap()
+    { super(); }
+
+    public ItemMap(int capacity)
+    { super(capacity); }
+
+    @Override
+    protected Integer keyForValue(Item value)
+    { return value.id; }
+}
+
+@Param({"100", "10000"})
+public int size;
+
+private List<Item> items;
+private List<Item> retainedItems;
+private ItemMap map;
+
+@Setup
+public void setup()
+{
+    final int [] ids = Keys.SparseInts(size);
+    items = new ArrayList<Item>(size);
+    for(int id : ids) {
+        items.add(new Item(id));
+    }
+
+    // half of them are in the map, half are not
+    retainedItems = new ArrayList<Item>(size);
+    for(int i=0; i<size; ++i) {
+        retainedItems.add(i % 2 == 0 ? items.get(i) : new Item(-ids[i]));
+    }
+}
+
+@Setup(Level.Invocation)
+public void setupMap()
+{
+    map = new ItemMap(size);
+    map.addAll(items);
+}
+
+@Benchmark
+public ItemMap addAll()
+{
+    final ItemMap added = new ItemMap();
+    added.addAll(items);
+    return added;
+}
+
+@Benchmark
+public ItemMap addAllPresized()
+{
+    final ItemMap added = new ItemMap(size);
+    added.addAll(items);
+    return added;
+}
+
+@Benchmark
+public boolean retainAll()
+{ return map.retainAll(retainedItems); }
+
+@Benchmark
+public boolean removeAll()
+{ return map.removeAll(retainedItems); }
+
+}
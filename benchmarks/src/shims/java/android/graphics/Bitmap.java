@@ -0,0 +1,75 @@
+package android.graphics;
+
+/**
+ * Desktop replacement of android.graphics.Bitmap, used as a stand-in value object.
+ * Keeps dimensions and config, but no pixels: the benchmarked code only computes sizes.
+ * */
+public final class Bitmap
+{
+
+public enum Config
+{
+    ALPHA_8,
+    RGB_565,
+    ARGB_4444,
+    ARGB_8888
+}
+
+private final int width, height;
+private final Config config;
+private final int allocationByteCount;
+private final boolean mutable;
+private boolean recycled;
+
+private Bitmap(int width, int height, Config config, boolean mutable)
+{
+    this.width = width;
+    this.height = height;
+    this.config = config;
+    this.allocationByteCount = width * height * BytesPerPixel(config);
+    this.mutable = mutable;
+}
+
+public static Bitmap createBitmap(int width, int height, Config config)
+{ return new Bitmap(width, height, config, true); }
+
+public int getWidth()
+{ return width; }
+
+public int getHeight()
+{ return height; }
+
+public Config getConfig()
+{ return config; }
+
+public int getRowBytes()
+{ return width * BytesPerPixel(config); }
+
+public int getByteCount()
+{ return getRowBytes() * height; }
+
+public int getAllocationByteCount()
+{ return allocationByteCount; }
+
+public boolean isMutable()
+{ return mutable; }
+
+public boolean isRecycled()
+{ return recycled; }
+
+public void recycle()
+{ recycled = true; }
+
+private static int BytesPerPixel(Config config)
+{
+    switch(config) {
+    case ALPHA_8:
+        return 1;
+    case ARGB_8888:
+        return 4;
+    default:
+        return 2;
+    }
+}
+
+}
@@ -0,0 +1,26 @@
+package android.os;
+
+/**
+ * Desktop replacement of android.os.Build. Reports KitKat, the newest version the library
+ * checks for, so that benchmarks run its current code paths.
+ * */
+public class Build
+{
+
+public static class VERSION
+{
+    public static final int SDK_INT = VERSION_CODES.KITKAT;
+}
+
+public static class VERSION_CODES
+{
+    public static final int GINGERBREAD = 9;
+    public static final int GINGERBREAD_MR1 = 10;
+    public static final int HONEYCOMB = 11;
+    public static final int HONEYCOMB_MR1 = 12;
+    public static final int ICE_CREAM_SANDWICH = 14;
+    public static final int JELLY_BEAN = 16;
+    public static final int KITKAT = 19;
+}
+
+}
@@ -0,0 +1,131 @@
+package android.util;
+
+import java.util.Arrays;
+
+/**
+ * Desktop replacement of android.util.SparseArray, with the same algorithm: keys are kept
+ * sorted in an int array and found with binary search, and removed entries are marked
+ * as deleted until the arrays are compacted.
+ * */
+public class SparseArray<E>
+{
+
+private static final Object DELETED = new Object();
+
+private boolean garbage;
+private int [] keys;
+private Object [] values;
+private int size;
+
+public SparseArray()
+{ this(10); }
+
+public SparseArray(int initialCapacity)
+{
+    keys = new int[Math.max(initialCapacity, 1)];
+    values = new Object[keys.length];
+}
+
+public E get(int key)
+{ return get(key, null); }
+
+@SuppressWarnings("unchecked")
+public E get(int key, E valueIfKeyNotFound)
+{
+    final int i = Arrays.binarySearch(keys, 0, size, key);
+    if(i < 0 || values[i] == DELETED) {
+        return valueIfKeyNotFound;
+    } else {
+        return (E) values[i];
+    }
+}
+
+public void delete(int key)
+{
+    final int i = Arrays.binarySearch(keys, 0, size, key);
+    if(i >= 0 && values[i] != DELETED) {
+        values[i] = DELETED;
+        garbage = true;
+    }
+}
+
+public void remove(int key)
+{ delete(key); }
+
+public void put(int key, E value)
+{
+    int i = Arrays.binarySearch(keys, 0, size, key);
+    if(i >= 0) {
+        values[i] = value;
+        return;
+    }
+
+    i = ~i;
+    if(i < size && values[i] == DELETED) {
+        keys[i] = key;
+        values[i] = value;
+        return;
+    }
+
+    if(garbage && size >= keys.length) {
+        gc();
+        i = ~Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    if(size >= keys.length) {
+        final int capacity = keys.length * 2;
+        keys = Arrays.copyOf(keys, capacity);
+        values = Arrays.copyOf(values, capacity);
+    }
+    System.arraycopy(keys, i, keys, i + 1, size - i);
+    System.arraycopy(values, i, values, i + 1, size - i);
+    keys[i] = key;
+    values[i] = value;
+    ++size;
+}
+
+public int size()
+{
+    if(garbage)
+        gc();
+    return size;
+}
+
+public int keyAt(int index)
+{
+    if(garbage)
+        gc();
+    return keys[index];
+}
+
+@SuppressWarnings("unchecked")
+public E valueAt(int index)
+{
+    if(garbage)
+        gc();
+    return (E) values[index];
+}
+
+public void clear()
+{
+    Arrays.fill(values, 0, size, null);
+    size = 0;
+    garbage = false;
+}
+
+private void gc()
+{
+    int o = 0;
+    for(int i=0; i<size; ++i) {
+        if(values[i] != DELETED) {
+            keys[o] = keys[i];
+            values[o] = values[i];
+            ++o;
+        }
+    }
+    Arrays.fill(values, o, size, null);
+    size = o;
+    garbage = false;
+}
+
+}
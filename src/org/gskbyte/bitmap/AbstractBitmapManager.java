@@ -1,21 +1,45 @@
 package org.gskbyte.bitmap;
 
+import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.gskbyte.util.IOUtils;
 import org.gskbyte.util.Logger;
 
+import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.res.Resources.NotFoundException;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Point;
-import android.os.AsyncTask;
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 
 /**
  * AbstractBitmapManager class
@@ -26,6 +50,10 @@ import android.os.AsyncTask;
  * This is an abstract class that defines interface and basic methods for
  * specific implementations.
  * 
+ * Bitmaps can be requested from any thread. Requests for bitmaps that are already
+ * loaded don't take any lock in the manager, and concurrent requests for the same
+ * non-loaded bitmap are coalesced, so that it is decoded only once.
+ * 
  * @see BitmapManager for a simple specialization
  * @see LRUBitmapManager for a manager using an LRU cache as backend
  * */
@@ -33,13 +61,43 @@ public abstract class AbstractBitmapManager
 {
 
 protected final Context context;
-protected final Map<String, BitmapRef> references = new HashMap<String, BitmapRef>();
+protected final Map<String, BitmapRef> references = new ConcurrentHashMap<String, BitmapRef>();
 protected int uniqueCounter;
 
-/* Used for background work */
-private final Map<String, HashSet<BackgroundLoadListener>> backgroundListeners = new HashMap<String, HashSet<BackgroundLoadListener>>();
-private final ArrayList<AsyncLoadTask> backgroundLoadTasks = new ArrayList<AsyncLoadTask>();
-private final ArrayList<AsyncLoadTask> runningLoadTasks = new ArrayList<AsyncLoadTask>();
+/* Unique references by id. Written holding the manager's lock, replaced by a bigger copy when it's full */
+private volatile AtomicReferenceArray<BitmapRef> referencesById = new AtomicReferenceArray<BitmapRef>(16);
+private int nextReferenceId;
+/* Incremented when clear() discards the ids, so that sets of ids can tell they are stale */
+private volatile int referenceGeneration;
+
+/* Loads being performed right now, by reference key. Used to coalesce concurrent requests */
+private final ConcurrentHashMap<String, FutureTask<Bitmap>> inFlightLoads = new ConcurrentHashMap<String, FutureTask<Bitmap>>();
+
+/* Used for background work. Both maps are guarded by backgroundLoads */
+private final Map<String, BackgroundLoad> backgroundLoads = new HashMap<String, BackgroundLoad>();
+private final Map<BackgroundLoadListener, String> backgroundListenerPaths = new HashMap<BackgroundLoadListener, String>();
+private final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
+private final AtomicLong backgroundLoadCounter = new AtomicLong();
+private int queuedBackgroundLoads; // guarded by backgroundLoads
+private final AtomicInteger runningBackgroundLoads = new AtomicInteger();
+private Executor loadExecutor;
+
+/* Runs tasks in the load executor with low priority */
+private final Executor lowPriorityExecutor = new Executor() {
+    @Override
+    public void execute(final Runnable command)
+    {
+        getLoadExecutor().execute(new PrioritizedTask(PRIORITY_LOW, nextBackgroundLoadOrderKey()) {
+            @Override
+            public void run()
+            { command.run(); }
+        });
+    }
+};
+
+/* Usage counters, see getStats() */
+private final AtomicLong hitCount = new AtomicLong(), missCount = new AtomicLong();
+private final AtomicLongArray decodeTimeHistogram = new AtomicLongArray(BitmapManagerStats.DECODE_TIME_BUCKET_BOUNDS.length + 1);
 
 public enum ScaleMode
 {
@@ -48,13 +106,50 @@ public enum ScaleMode
     Full  // Fast scale mode is applied, as well as further resizing if needed
 }
 
+/**
+ * Order in which background loads with the same priority are run.
+ * */
+public enum LoadOrder
+{
+    FirstInFirstOut,
+    LastInFirstOut // Most recent requests first, useful for fast scrolling lists
+}
+
+/** Priorities for background loads. Loads with higher priority run first. */
+public static final int PRIORITY_LOW        = -10;
+public static final int PRIORITY_DEFAULT    = 0;
+public static final int PRIORITY_HIGH       = 10;
+
+private static final int LOAD_THREAD_KEEP_ALIVE_SECONDS = 10;
+
+/** Default size of the tiles returned by getTile(), in pixels */
+public static final int DEFAULT_TILE_SIZE = 256;
+/** Maximum level for getTile(), which downsamples by 2^level */
+public static final int MAX_TILE_LEVEL = 16;
+
+/** Default size of the previews given to ProgressiveLoadListeners, in pixels */
+public static final int DEFAULT_PREVIEW_SIZE = 64;
+
+/* Values for BitmapRef.opacity */
+private static final int OPACITY_UNKNOWN = 0, OPACITY_OPAQUE = 1, OPACITY_TRANSLUCENT = 2;
+
 private final int numLoadThreads;
 private ScaleMode automaticScaleMode = ScaleMode.None;
+private volatile LoadOrder backgroundLoadOrder = LoadOrder.FirstInFirstOut;
+private volatile BitmapPool bitmapPool;
+private volatile Bitmap.Config decodeConfig, opaqueDecodeConfig;
+private volatile BitmapSizeIndex sizeIndex;
+private volatile BitmapExistenceIndex existenceIndex;
+private volatile int tileSize = DEFAULT_TILE_SIZE;
+private volatile int previewSize = DEFAULT_PREVIEW_SIZE;
+private final WeakBitmapTier releasedBitmaps = new WeakBitmapTier();
+private volatile boolean releasedBitmapsRecovery = true;
+private final AtomicBoolean sizeIndexSaveScheduled = new AtomicBoolean();
 private int maxBitmapWidth, maxBitmapHeight;
 
 
 /**
- * Default constructor. Will establish one load thread
+ * Default constructor. Will establish one load thread less than the number of available processors (at least one).
  * @param context The manager's context. Recommended to be the Application context.
  * */
 public AbstractBitmapManager(Context context)
@@ -77,6 +172,88 @@ public AbstractBitmapManager(Context context, int numLoadThreads)
 public int getNumLoadThreads()
 { return numLoadThreads; }
 
+public LoadOrder getBackgroundLoadOrder()
+{ return backgroundLoadOrder; }
+
+/**
+ * Sets the order in which background loads with the same priority are run.
+ * With LastInFirstOut, requesting again a bitmap which is waiting to be loaded moves it to the front.
+ * @param order The order for loads requested from now on. Default is FirstInFirstOut.
+ * */
+public void setBackgroundLoadOrder(LoadOrder order)
+{ this.backgroundLoadOrder = order; }
+
+/**
+ * Returns the executor used to load bitmaps in background. If none has been set,
+ * a bounded pool with getNumLoadThreads() threads is created.
+ * */
+public synchronized Executor getLoadExecutor()
+{
+    if(loadExecutor == null) {
+        loadExecutor = NewLoadExecutor(numLoadThreads);
+    }
+    return loadExecutor;
+}
+
+/**
+ * Returns an executor that runs tasks in the load executor, after the loads with higher priority.
+ * */
+protected Executor getLowPriorityExecutor()
+{ return lowPriorityExecutor; }
+
+/**
+ * Sets the executor used to load bitmaps in background. The tasks passed to it
+ * implement Comparable, so an executor backed by a PriorityBlockingQueue (see NewLoadExecutor())
+ * will run the most important loads first.
+ * Loads already queued in the previous executor will still be run by it.
+ * @param executor The executor to use. Must not be null.
+ * */
+public synchronized void setLoadExecutor(Executor executor)
+{
+    if(executor == null) {
+        throw new IllegalArgumentException("executor can't be null");
+    }
+    this.loadExecutor = executor;
+}
+
+/**
+ * Creates a bounded thread pool suitable to decode bitmaps. Queued loads are
+ * kept in a PriorityBlockingQueue, and idle threads are released after some seconds.
+ * @param numThreads The maximum number of threads decoding at the same time. Must be at least 1.
+ * */
+public static ThreadPoolExecutor NewLoadExecutor(int numThreads)
+{
+    final int threads = Math.max(numThreads, 1);
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+            LOAD_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>(),
+            new LoadThreadFactory());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+}
+
+/**
+ * Creates low priority threads for the load executor, so that decoding doesn't steal time from the UI thread.
+ * */
+private static final class LoadThreadFactory
+implements ThreadFactory
+{
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+    
+    @Override
+    public Thread newThread(final Runnable r)
+    {
+        return new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }
+        }, "BitmapLoad #" + threadCounter.incrementAndGet());
+    }
+}
+
 public ScaleMode getAutomaticScaleMode()
 { return automaticScaleMode; }
 
@@ -112,6 +289,143 @@ public void disableScaleBigBitmaps()
     automaticScaleMode = ScaleMode.None;
 }
 
+public BitmapPool getBitmapPool()
+{ return bitmapPool; }
+
+/**
+ * Sets a pool whose bitmaps will be reused to decode new ones, if supported by the platform.
+ * Intermediate bitmaps created while scaling are returned to it. Decoded bitmaps will be mutable.
+ * @param pool The pool to use, or null to disable bitmap reuse.
+ * */
+public void setBitmapPool(BitmapPool pool)
+{ this.bitmapPool = pool; }
+
+public Bitmap.Config getDecodeConfig()
+{ return decodeConfig; }
+
+/**
+ * Sets the config with which bitmaps are decoded, unless their references have their own one.
+ * Already loaded bitmaps are not affected.
+ * @param config The config to use, or null to use the platform's default (ARGB_8888).
+ * */
+public void setDecodeConfig(Bitmap.Config config)
+{ this.decodeConfig = config; }
+
+/**
+ * Sets the decode config of a reference, which takes precedence over the manager's ones.
+ * Useful for example to keep a high quality config for some opaque bitmaps, or to decode
+ * masks with ALPHA_8. An already loaded bitmap is not affected.
+ * @param key The bitmap's path or alias
+ * @param config The config to use, or null to use the manager's ones.
+ * @return true if the key is referenced
+ * */
+public boolean setDecodeConfig(String key, Bitmap.Config config)
+{
+    final BitmapRef ref = references.get(key);
+    if(ref != null) {
+        ref.config = config;
+        return true;
+    } else {
+        return false;
+    }
+}
+
+public Bitmap.Config getOpaqueDecodeConfig()
+{ return opaqueDecodeConfig; }
+
+/**
+ * Sets the config with which opaque bitmaps are decoded, unless their references have their own one.
+ * Whether a bitmap is opaque is read from its file's header (JPEG, PNG and WebP are supported) the
+ * first time it's decoded. Setting it to RGB_565 halves the memory used by photos, at the cost of
+ * some color banding. Already loaded bitmaps are not affected.
+ * @param config The config for opaque bitmaps, or null to decode them as the rest (the default).
+ * */
+public void setOpaqueDecodeConfig(Bitmap.Config config)
+{ this.opaqueDecodeConfig = config; }
+
+public BitmapSizeIndex getSizeIndex()
+{ return sizeIndex; }
+
+/**
+ * Sets an index used to know the size of bitmaps without reading their files. The index is
+ * loaded in background if needed, and saved in background when new sizes are added to it.
+ * @param index The index to use, or null to always read the sizes from the files.
+ * */
+public void setSizeIndex(final BitmapSizeIndex index)
+{
+    this.sizeIndex = index;
+    if(index != null && !index.isLoaded()) {
+        getLoadExecutor().execute(new PrioritizedTask(PRIORITY_HIGH, nextBackgroundLoadOrderKey()) {
+            @Override
+            public void run()
+            { index.load(); }
+        });
+    }
+}
+
+public BitmapExistenceIndex getExistenceIndex()
+{ return existenceIndex; }
+
+/**
+ * Sets an index used to know whether bitmap files exist without accessing the file system
+ * for each of them. The directories of the referenced bitmaps are listed in background,
+ * as well as those of bitmaps referenced later.
+ * @param index The index to use, or null to always check the files.
+ * */
+public synchronized void setExistenceIndex(BitmapExistenceIndex index)
+{
+    this.existenceIndex = index;
+    if(index != null) {
+        final Map<Integer, ArrayList<String>> pathsByLocation = new HashMap<Integer, ArrayList<String>>();
+        final AtomicReferenceArray<BitmapRef> refs = referencesById;
+        for(int i=0; i<refs.length(); ++i) {
+            final BitmapRef ref = refs.get(i);
+            if(ref != null) {
+                ArrayList<String> paths = pathsByLocation.get(ref.location);
+                if(paths == null) {
+                    paths = new ArrayList<String>();
+                    pathsByLocation.put(ref.location, paths);
+                }
+                paths.add(ref.path);
+            }
+        }
+        for(Map.Entry<Integer, ArrayList<String>> e : pathsByLocation.entrySet()) {
+            index.update(e.getKey(), e.getValue(), lowPriorityExecutor);
+        }
+    }
+}
+
+/**
+ * Saves the size index in background, if there are changes. Saves requested while
+ * another one is waiting are performed only once.
+ * */
+private void scheduleSizeIndexSave()
+{
+    final BitmapSizeIndex index = sizeIndex;
+    if(index != null && index.isDirty() && sizeIndexSaveScheduled.compareAndSet(false, true)) {
+        getLoadExecutor().execute(new PrioritizedTask(PRIORITY_LOW, nextBackgroundLoadOrderKey()) {
+            @Override
+            public void run()
+            {
+                sizeIndexSaveScheduled.set(false);
+                index.save();
+            }
+        });
+    }
+}
+
+/**
+ * Called when decoding a bitmap fails because there is not enough memory, before trying
+ * again. Releases the pooled bitmaps by default; subclasses should release other memory.
+ * */
+protected void onOutOfMemory()
+{
+    final BitmapPool pool = bitmapPool;
+    if(pool != null) {
+        pool.clear();
+    }
+}
+
 /**
  * Adds a reference to a bitmap located under the specified location, with the given alias
  * @param location Integer value specifying location (@see IOUtils)
@@ -119,15 +433,18 @@ public void disableScaleBigBitmaps()
  * @param aliases Aliases for the given file.  All must have length() > 0.
  * @return true If the reference has just been created
  * */
-public boolean addPath(int location, String filepath, String ... aliases)
+public synchronized boolean addPath(int location, String filepath, String ... aliases)
 {
-    boolean isNewRef = false;
     BitmapRef ref = references.get(filepath);
-    if(ref == null) {
-        ref = initializeReference(location, filepath);
-        references.put(filepath, ref);   
-        isNewRef = true;
-        ++uniqueCounter;
+    final boolean isNewRef = ref == null;
+    if(isNewRef) {
+        ensureReferenceIdCapacity(nextReferenceId + 1);
+        ref = registerReference(location, filepath);
+        
+        final BitmapExistenceIndex index = existenceIndex;
+        if(index != null) {
+            index.update(location, Collections.singleton(filepath), lowPriorityExecutor);
+        }
     }
 
     addAliases(ref, aliases);
@@ -135,13 +452,107 @@ public boolean addPath(int location, String filepath, String ... aliases)
     return isNewRef;
 }
 
+/**
+ * Adds references to many bitmaps located under the same location, taking the manager's lock once.
+ * Much faster than calling addPath() for every path when registering thousands of them.
+ * @param location Integer value specifying location (@see IOUtils)
+ * @param filepaths The files' paths. Already referenced paths are skipped.
+ * @return The number of references created
+ * */
+public synchronized int addPaths(int location, Collection<String> filepaths)
+{
+    ensureReferenceIdCapacity(nextReferenceId + filepaths.size());
+    int created = 0;
+    for(String filepath : filepaths) {
+        if(!references.containsKey(filepath)) {
+            registerReference(location, filepath);
+            ++created;
+        }
+    }
+    
+    final BitmapExistenceIndex index = existenceIndex;
+    if(index != null && created > 0) {
+        index.update(location, filepaths, lowPriorityExecutor);
+    }
+    return created;
+}
+
+// must be called holding the lock, with enough capacity in referencesById
+private BitmapRef registerReference(int location, String filepath)
+{
+    final BitmapRef ref = initializeReference(location, filepath);
+    ref.id = nextReferenceId++;
+    referencesById.set(ref.id, ref);
+    references.put(filepath, ref);
+    ++uniqueCounter;
+    return ref;
+}
+
+// must be called holding the lock
+private void ensureReferenceIdCapacity(int capacity)
+{
+    final AtomicReferenceArray<BitmapRef> refs = referencesById;
+    if(capacity > refs.length()) {
+        final AtomicReferenceArray<BitmapRef> grown = new AtomicReferenceArray<BitmapRef>(Math.max(capacity, refs.length() * 2));
+        for(int i=0; i<nextReferenceId; ++i) {
+            grown.set(i, refs.get(i));
+        }
+        referencesById = grown;
+    }
+}
+
+/**
+ * Returns the id of the reference for a key. Ids are dense integers, assigned when references
+ * are created, so that sets of references can be kept in a BitSet. clear() starts assigning
+ * them from 0 again, see getReferenceGeneration().
+ * @param key The bitmap's path or alias
+ * @return The reference's id, or -1 if the key is not referenced
+ * */
+public int getReferenceId(String key)
+{
+    final BitmapRef ref = references.get(key);
+    return ref != null ? ref.id : -1;
+}
+
+/**
+ * Returns a number that changes every time clear() discards the reference ids.
+ * Ids obtained with a different generation refer to other references, or to none.
+ * */
+public int getReferenceGeneration()
+{ return referenceGeneration; }
+
+/**
+ * Returns the path of the reference with the given id.
+ * @return The path, or null if there is no reference with that id (or it has been cleared)
+ * */
+public String getPathForReferenceId(int id)
+{
+    final BitmapRef ref = getReferenceById(id);
+    return ref != null ? ref.path : null;
+}
+
+/**
+ * Returns true if the file for the reference with the given id exists.
+ * */
+public boolean existsBitmapFileForReferenceId(int id)
+{
+    final BitmapRef ref = getReferenceById(id);
+    return ref != null && ref.existsFile();
+}
+
+final BitmapRef getReferenceById(int id)
+{
+    final AtomicReferenceArray<BitmapRef> refs = referencesById;
+    return id >= 0 && id < refs.length() ? refs.get(id) : null;
+}
+
 /**
  * Adds aliases for an existing mapped filepath.
  * @param filepath The file path for which to define aliases
  * @param aliases Alisases to define
  * @throws IllegalArgumentException if the given filepath was not mapped
  * */
-public void addAliases(String filepath, String ... aliases)
+public synchronized void addAliases(String filepath, String ... aliases)
 {
     final BitmapRef ref = references.get(filepath);
     if(ref != null) {
@@ -170,8 +581,58 @@ protected abstract BitmapRef initializeReference(int location, String path);
 /**
  * Clears all references to bitmaps and frees memory.
  * */
-public void clear()
-{ references.clear(); }
+public synchronized void clear()
+{
+    references.clear();
+    // ids are reused, views discard the old ones when they see the new generation
+    referencesById = new AtomicReferenceArray<BitmapRef>(16);
+    nextReferenceId = 0;
+    ++referenceGeneration;
+    releasedBitmaps.clear();
+}
+
+public boolean isReleasedBitmapsRecoveryEnabled()
+{ return releasedBitmapsRecovery; }
+
+/**
+ * Enables or disables recovering released bitmaps. When enabled (the default), the manager keeps
+ * weak references to the bitmaps it releases, so that if they are requested again while still
+ * in use somewhere else (for example, in a view), they are returned without decoding them again.
+ * Bitmaps given to the bitmap pool are never recovered.
+ * */
+public void setReleasedBitmapsRecoveryEnabled(boolean enabled)
+{
+    this.releasedBitmapsRecovery = enabled;
+    if(!enabled) {
+        releasedBitmaps.clear();
+    }
+}
+
+/**
+ * Keeps a weak reference to a bitmap that the manager doesn't hold anymore, if recovery is enabled.
+ * @param key The key used to recover it, as returned by BitmapRef.keyFor()
+ * @param bitmap The released bitmap. Must not be given to the bitmap pool.
+ * */
+protected void releaseBitmap(String key, Bitmap bitmap)
+{
+    if(releasedBitmapsRecovery) {
+        releasedBitmaps.put(key, bitmap);
+    }
+}
+
+/**
+ * Returns a released bitmap that is still alive, if recovery is enabled.
+ * @param key The key passed to releaseBitmap()
+ * @return The bitmap, or null if it's not available
+ * */
+protected Bitmap recoverBitmap(String key)
+{
+    if(releasedBitmapsRecovery) {
+        return releasedBitmaps.take(key);
+    } else {
+        return null;
+    }
+}
 
 /**
  * Returns the number of different unique references stored in the manager.
@@ -184,6 +645,45 @@ public int size()
  * */
 public abstract int countLoadedBitmaps();
 
+/**
+ * Returns the memory used by the bitmaps kept by the manager, in bytes.
+ * */
+public abstract long getResidentBytes();
+
+/**
+ * Returns the number of bitmaps released to stay within the memory budget. 0 by default.
+ * */
+protected long getEvictionCount()
+{ return 0; }
+
+/**
+ * Returns a snapshot of the manager's usage figures. All of them are kept with counters,
+ * so it's cheap enough to be called periodically.
+ * */
+public BitmapManagerStats getStats()
+{
+    final long [] histogram = new long[decodeTimeHistogram.length()];
+    for(int i=0; i<histogram.length; ++i) {
+        histogram[i] = decodeTimeHistogram.get(i);
+    }
+    
+    final int queued;
+    synchronized (backgroundLoads) {
+        queued = queuedBackgroundLoads;
+    }
+    
+    return new BitmapManagerStats(getResidentBytes(), countLoadedBitmaps(),
+            hitCount.get(), missCount.get(), getEvictionCount(), releasedBitmaps.recoveredCount(),
+            histogram,
+            inFlightLoads.size(), queued, runningBackgroundLoads.get());
+}
+
+private void recordDecodeTime(long startMillis)
+{
+    final long elapsed = SystemClock.uptimeMillis() - startMillis;
+    decodeTimeHistogram.incrementAndGet(BitmapManagerStats.DecodeTimeBucket(elapsed));
+}
+
 /**
  * Returns true if the reference is defined
  * @param key The bitmap's key or path
@@ -242,10 +742,11 @@ public boolean existsBitmapFile(String key)
 }
 
 /**
- * Returns a bitmap given a path.
+ * Returns a bitmap given a path. Doesn't block if the bitmap is already loaded.
+ * If another thread is loading the same bitmap, waits for it instead of loading it again.
  * @param key The bitmap's path or alias, used as a key to retrieve it.
  * */
-public synchronized Bitmap get(String key)
+public Bitmap get(String key)
 {
     BitmapRef ref = references.get(key);
     if(ref != null) {
@@ -257,7 +758,7 @@ public synchronized Bitmap get(String key)
 }
 
 /**
- * Returns a bitmap given a path and fitting the given size.
+ * Returns a bitmap given a path and fitting the given size. Doesn't block if the bitmap is already loaded.
  * @param key The bitmap's path or alias, used as a key to retrieve it.
  * 
  * @param scaleMode The scale mode to be used
@@ -265,7 +766,7 @@ public synchronized Bitmap get(String key)
  * @param maxHeight The bitmap's maxHeight, if not loaded
  * */
 
-public synchronized Bitmap get(String key, ScaleMode scaleMode, int maxWidth, int maxHeight)
+public Bitmap get(String key, ScaleMode scaleMode, int maxWidth, int maxHeight)
 {
     if(maxWidth <= 0 || maxHeight <= 0) {
         throw new IllegalArgumentException("maxWidth and maxHeight must be >0");
@@ -304,14 +805,164 @@ public String getAbsolutePathForKey(String key)
 public void freeBitmap(String key)
 {
     BitmapRef ref = references.get(key);
-    if(ref != null)
+    if(ref != null) {
         ref.freeResources();
+        ref.releaseTileDecoder();
+    }
+}
+
+public int getTileSize()
+{ return tileSize; }
+
+/**
+ * Sets the size of the tiles returned by getTile(). Tiles already cached with
+ * another size are not reused.
+ * @param tileSize The tiles' width and height, in pixels. Must be > 0.
+ * */
+public void setTileSize(int tileSize)
+{
+    if(tileSize <= 0) {
+        throw new IllegalArgumentException("tileSize must be > 0");
+    }
+    this.tileSize = tileSize;
+}
+
+/**
+ * Returns true if the running Android version can decode tiles (2.3.3+).
+ * */
+public static boolean IsTileDecodingSupported()
+{ return Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD_MR1; }
+
+/**
+ * Returns the number of columns (x) and rows (y) of tiles that cover a bitmap at a given level.
+ * Reads the bitmap's size if needed.
+ * @param key The bitmap's path or alias
+ * @param level The detail level, see getTile()
+ * @return The grid size, or null if the bitmap is not referenced or can't be read
+ * */
+public Point getTileGridSize(String key, int level)
+{
+    checkTileLevel(level);
+    final Point size = getBitmapSize(key);
+    if(size == null || size.x <= 0 || size.y <= 0)
+        return null;
+    
+    final long sourceTileSize = (long)tileSize << level;
+    return new Point((int)((size.x + sourceTileSize - 1) / sourceTileSize), (int)((size.y + sourceTileSize - 1) / sourceTileSize));
+}
+
+/**
+ * Returns a tile of a bitmap, decoding only the part of the file it covers. Useful for images
+ * much bigger than the screen, that can't be loaded whole without losing detail.
+ * 
+ * At level 0, tiles have the original resolution. Every level halves it, so that a tile covers
+ * 2^level times more pixels of the original image in each dimension. Tiles have getTileSize()
+ * pixels per side, except the ones in the right and bottom borders, which can be smaller.
+ * 
+ * LRUBitmapManager caches tiles in its LRU cache, under their own keys, so that only the
+ * recently used ones take memory. BitmapManager doesn't cache them.
+ * Requires Android 2.3.3+, returns null in older versions.
+ * @param key The bitmap's path or alias
+ * @param level The detail level, in the range [0, MAX_TILE_LEVEL]
+ * @param x The tile's column
+ * @param y The tile's row
+ * @return The tile, or null if it's out of the image or can't be decoded
+ * */
+public Bitmap getTile(String key, int level, int x, int y)
+{
+    checkTileLevel(level);
+    if(x < 0 || y < 0) {
+        throw new IllegalArgumentException("x and y must be >= 0");
+    }
+    
+    final BitmapRef ref = references.get(key);
+    if(ref == null) {
+        Logger.error(getClass(), "Trying to getTile() for not referenced bitmap: "+key);
+        return null;
+    }
+    if(!IsTileDecodingSupported()) {
+        Logger.error(getClass(), "Tile decoding requires Android 2.3.3");
+        return null;
+    }
+    return ref.getTile(tileSize, level, x, y);
+}
+
+private static void checkTileLevel(int level)
+{
+    if(level < 0 || level > MAX_TILE_LEVEL) {
+        throw new IllegalArgumentException("level must be in the range [0, " + MAX_TILE_LEVEL + "]");
+    }
 }
 /**
  * Frees memory by releasing all bitmaps.
  * */
 public abstract void releaseAllBitmaps();
 
+/**
+ * Loads the bitmap for a reference, or waits for the thread that is already loading it.
+ * Only the first caller decodes the file, the others get the same result.
+ * @param ref The reference whose bitmap must be loaded
+ * @return The loaded bitmap, or null if it could not be loaded
+ * */
+private Bitmap loadCoalesced(final BitmapRef ref, final ScaleMode scaleMode, final int maxWidth, final int maxHeight)
+{
+    return loadCoalesced(ref.keyFor(scaleMode, maxWidth, maxHeight), new Callable<Bitmap>() {
+        @Override
+        public Bitmap call()
+        {
+            // another thread may have stored it right before we registered the load
+            Bitmap bitmap = ref.getLoadedBitmap(scaleMode, maxWidth, maxHeight);
+            if(bitmap == null) {
+                bitmap = ref.loadMissingBitmap(scaleMode, maxWidth, maxHeight);
+                if(bitmap != null) {
+                    ref.storeBitmap(bitmap, scaleMode, maxWidth, maxHeight);
+                } else {
+                    Logger.error(AbstractBitmapManager.this.getClass(), "Bitmap not found: " + ref.path);
+                }
+            }
+            return bitmap;
+        }
+    });
+}
+
+/**
+ * Runs a loader, or waits for the thread that is already running one with the same key.
+ * @param loadKey The key identifying the loaded bitmap
+ * @param loader Loads and stores the bitmap
+ * @return The loaded bitmap, or null if it could not be loaded
+ * */
+private Bitmap loadCoalesced(String loadKey, Callable<Bitmap> loader)
+{
+    FutureTask<Bitmap> load = inFlightLoads.get(loadKey);
+    boolean ownsLoad = false;
+    if(load == null) {
+        final FutureTask<Bitmap> newLoad = new FutureTask<Bitmap>(loader);
+        
+        load = inFlightLoads.putIfAbsent(loadKey, newLoad);
+        if(load == null) {
+            load = newLoad;
+            ownsLoad = true;
+        }
+    }
+    
+    if(ownsLoad) {
+        try {
+            load.run();
+        } finally {
+            inFlightLoads.remove(loadKey, load);
+        }
+    }
+    
+    try {
+        return load.get();
+    } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+        Logger.except(getClass(), e.getCause());
+    }
+    return null;
+}
+
 /**
  * BitmapReference is the internal class used by the BitmapManager to store information
  * about the managed Bitmaps.
@@ -327,8 +978,15 @@ protected abstract class BitmapRef
 
 final int location;
 final String path;
+int id = -1; // assigned by the manager when registered
 float scale;
 final Point size = new Point();
+/* Decode config for this reference only, null to use the manager's */
+volatile Bitmap.Config config;
+/* Whether the file has transparency, read from its header only if needed to choose the decode config */
+private volatile int opacity = OPACITY_UNKNOWN;
+/* Kept open between tiles, because opening it parses the whole file. Guarded by this */
+private BitmapTileDecoder tileDecoder;
 
 public BitmapRef(int location, String path)
 {
@@ -336,49 +994,310 @@ public BitmapRef(int location, String path)
     this.path = path;
 }
 
-public abstract Bitmap getBitmap(ScaleMode scaleMode, int maxWidth, int maxHeight);
-public abstract boolean isLoaded();
+/**
+ * Returns the bitmap if it's loaded, without accessing the file system.
+ * Must be safe to call from any thread.
+ * @param scaleMode, maxWidth, maxHeight The requested scale, if the implementation stores different variants.
+ * @return The loaded bitmap, or null if it's not in memory
+ * */
+public abstract Bitmap getLoadedBitmap(ScaleMode scaleMode, int maxWidth, int maxHeight);
 
-public boolean existsFile()
-{
-    return IOUtils.ExistsFile(location, path, context);
-}
+/**
+ * Keeps a freshly loaded bitmap. Must be safe to call from any thread.
+ * @param bitmap The loaded bitmap, never null
+ * @param scaleMode, maxWidth, maxHeight The scale with which it was loaded.
+ * */
+protected abstract void storeBitmap(Bitmap bitmap, ScaleMode scaleMode, int maxWidth, int maxHeight);
+
+/**
+ * Returns true if any bitmap for this reference is present in memory.
+ * */
+public abstract boolean isLoaded();
+
+/**
+ * Returns a key identifying the bitmap loaded with the given scale. Concurrent loads
+ * with the same key are performed only once. By default, a reference has a single bitmap.
+ * */
+protected String keyFor(ScaleMode scaleMode, int maxWidth, int maxHeight)
+{ return path; }
+
+/**
+ * Returns the bitmap, loading it if it's not present in memory.
+ * */
+public final Bitmap getBitmap(ScaleMode scaleMode, int maxWidth, int maxHeight)
+{
+    final Bitmap bitmap = getLoadedBitmap(scaleMode, maxWidth, maxHeight);
+    if(bitmap != null) {
+        hitCount.incrementAndGet();
+        return bitmap;
+    } else {
+        missCount.incrementAndGet();
+        return loadCoalesced(this, scaleMode, maxWidth, maxHeight);
+    }
+}
+
+/**
+ * Returns true if the bitmap's file exists. Asks the manager's existence index, if set.
+ * */
+public boolean existsFile()
+{
+    final BitmapExistenceIndex index = existenceIndex;
+    if(index != null) {
+        return index.exists(location, path, lowPriorityExecutor);
+    } else {
+        return IOUtils.ExistsFile(location, path, context);
+    }
+}
+
+/**
+ * Returns the last modification time of the bitmap's file, searched as when it's read
+ * (see IOUtils.GetFileCombinedLocation()), or of the application package if the file is
+ * in the assets or resources. Returns 0 if the modification time can't be read.
+ * */
+protected long lastModified()
+{
+    try {
+        final File f = IOUtils.GetFileCombinedLocation(location, path, context);
+        return (f != null ? f : new File(context.getPackageCodePath())).lastModified();
+    } catch (RuntimeException e) {
+        Logger.error(getClass(), "Can't read modification time of " + path + ": " + e.getMessage());
+        return 0;
+    }
+}
+
+/**
+ * Loads a bitmap that is not present in memory. Decodes the file by default,
+ * subclasses can look for it in other places first.
+ * */
+protected Bitmap loadMissingBitmap(ScaleMode scaleMode, int maxWidth, int maxHeight)
+{
+    return loadBitmap(scaleMode, maxWidth, maxHeight);
+}
 
 protected final Point getBitmapSize()
 {
-    if(size.x==0) {
+    if(size.x==0 && !readIndexedSize()) {
+        InputStream is = null;
         try {
-            InputStream is = IOUtils.GetInputStreamForDrawable(location, path, context);
-            final BitmapFactory.Options opts = new BitmapFactory.Options();
-            opts.inJustDecodeBounds = true;
-            BitmapFactory.decodeStream(is, null, opts);
-            size.x = opts.outWidth;
-            size.y = opts.outHeight;
+            is = openStream();
+            readBitmapSize(is);
         } catch (NotFoundException e) {
             Logger.except(getClass(), e);
         } catch (IOException e) {
             Logger.except(getClass(), e);
+        } finally {
+            IOUtils.CloseQuietly(is);
         }
     }
     
     return size;
 }
 
+/**
+ * Reads the bitmap's size from the manager's size index, if set and the bitmap is indexed.
+ * @return true if the size has been found
+ * */
+private boolean readIndexedSize()
+{
+    final BitmapSizeIndex index = sizeIndex;
+    if(index != null) {
+        final Point indexed = index.get(location, path);
+        if(indexed != null) {
+            size.x = indexed.x;
+            size.y = indexed.y;
+            return true;
+        }
+    }
+    return false;
+}
+
+/**
+ * Reads the bitmap's size from its header, consuming only the beginning of the stream.
+ * The size is added to the manager's size index, if set.
+ * */
+private void readBitmapSize(InputStream is)
+{
+    final BitmapFactory.Options opts = new BitmapFactory.Options();
+    opts.inJustDecodeBounds = true;
+    BitmapFactory.decodeStream(is, null, opts);
+    size.x = opts.outWidth;
+    size.y = opts.outHeight;
+    
+    final BitmapSizeIndex index = sizeIndex;
+    if(index != null && size.x > 0) {
+        index.put(location, path, size.x, size.y);
+        scheduleSizeIndexSave();
+    }
+}
+
+/**
+ * Returns the config with which the bitmap is decoded. If the manager has a config for opaque
+ * bitmaps and the header hasn't been read yet, assumes that it's translucent.
+ * */
+final Bitmap.Config getDecodeConfig()
+{
+    final Bitmap.Config refConfig = config;
+    if(refConfig != null)
+        return refConfig;
+    
+    final Bitmap.Config opaqueConfig = opaqueDecodeConfig;
+    if(opaqueConfig != null && opacity == OPACITY_OPAQUE)
+        return opaqueConfig;
+    
+    final Bitmap.Config managerConfig = decodeConfig;
+    return managerConfig != null ? managerConfig : Bitmap.Config.ARGB_8888;
+}
+
+/**
+ * Returns true if the header must be read to choose the decode config.
+ * */
+private boolean needsOpacity()
+{ return opacity == OPACITY_UNKNOWN && config == null && opaqueDecodeConfig != null; }
+
+/**
+ * Reads whether the bitmap is opaque from its header, consuming only the beginning of the stream.
+ * */
+private void readOpacity(InputStream is)
+    throws IOException
+{ opacity = BitmapHeader.IsOpaque(is) ? OPACITY_OPAQUE : OPACITY_TRANSLUCENT; }
+
+/**
+ * Opens a buffered stream for the bitmap's file, marked at its beginning so that
+ * it can be rewound after reading the header.
+ * */
+private InputStream openStream()
+    throws IOException
+{
+    return new HeaderMarkedInputStream(IOUtils.GetInputStreamForDrawable(location, path, context));
+}
+
+/**
+ * Rewinds a stream returned by openStream(). If the header was too big to be kept
+ * in the stream's buffer, closes it and opens a new one.
+ * */
+private InputStream rewindStream(InputStream is)
+    throws IOException
+{
+    try {
+        is.reset();
+        return is;
+    } catch (IOException e) {
+        IOUtils.CloseQuietly(is);
+        return openStream();
+    }
+}
+
+/**
+ * Returns the size that loadBitmap() gives to the bitmap for the given scale. Reads the original size if needed.
+ * */
+protected final Point getScaledSize(ScaleMode scaleMode, int maxWidth, int maxHeight)
+{
+    final Point source = getBitmapSize();
+    if(scaleMode == ScaleMode.None || source.x <= 0 || source.y <= 0) {
+        return new Point(source.x, source.y);
+    }
+    
+    final float minfactor = Math.min((float)source.x / maxWidth, (float)source.y / maxHeight);
+    final int sampleSize = Math.max(1, (int)minfactor);
+    int width = source.x / sampleSize, height = source.y / sampleSize;
+    if(scaleMode == ScaleMode.Full) {
+        final float fullScale = Math.min(1, Math.min((float)maxWidth / width, (float)maxHeight / height));
+        if(fullScale < 1) {
+            width = (int)(width * fullScale);
+            height = (int)(height * fullScale);
+        }
+    }
+    return new Point(width, height);
+}
+
+/**
+ * Decodes a heavily subsampled version of the bitmap, not bigger than twice the given size.
+ * @return The preview, or null if the bitmap is small enough to not need one, or can't be decoded.
+ * */
+final Bitmap loadPreview(int previewSize)
+{
+    final Point source = getBitmapSize();
+    final int sampleSize = Integer.highestOneBit(Math.max(source.x, source.y) / previewSize);
+    if(sampleSize < 2)
+        return null;
+    
+    InputStream is = null;
+    try {
+        final BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inSampleSize = sampleSize;
+        is = openStream();
+        if(needsOpacity()) {
+            readOpacity(is);
+            is = rewindStream(is);
+        }
+        opts.inPreferredConfig = getDecodeConfig();
+        return BitmapFactory.decodeStream(is, null, opts);
+    } catch (NotFoundException e) {
+        // the full load will report it
+    } catch (IOException e) {
+        // the full load will report it
+    } catch (OutOfMemoryError e) {
+        Logger.error(AbstractBitmapManager.this.getClass(), "Out of memory decoding preview for " + path);
+    } finally {
+        IOUtils.CloseQuietly(is);
+    }
+    return null;
+}
+
+/**
+ * Decodes the bitmap's file with the given scale. If there is not enough memory, lets the
+ * manager release some and tries once more.
+ * @return The decoded bitmap, or null if it could not be decoded
+ * */
 protected final Bitmap loadBitmap(ScaleMode scaleMode, int maxWidth, int maxHeight)
 {
+    final long startMillis = SystemClock.uptimeMillis();
+    try {
+        try {
+            return decodeBitmap(scaleMode, maxWidth, maxHeight);
+        } catch (OutOfMemoryError e) {
+            Logger.error(AbstractBitmapManager.this.getClass(),
+                    "Out of memory decoding " + path + " (" + size.x + "x" + size.y + "), releasing memory and retrying");
+            onOutOfMemory();
+            return decodeBitmap(scaleMode, maxWidth, maxHeight);
+        }
+    } catch (OutOfMemoryError e) {
+        Logger.except(AbstractBitmapManager.this.getClass(), e, "Can't decode " + path + " (" + size.x + "x" + size.y + ")");
+    } finally {
+        recordDecodeTime(startMillis);
+    }
+    return null;
+}
+
+private Bitmap decodeBitmap(ScaleMode scaleMode, int maxWidth, int maxHeight)
+{
+    InputStream is = null;
     try {
         BitmapFactory.Options opts = new BitmapFactory.Options();
         
+        // the header and the bitmap are read from the same stream
+        is = openStream();
+        if(needsOpacity()) {
+            readOpacity(is);
+            is = rewindStream(is);
+        }
+        opts.inPreferredConfig = getDecodeConfig();
+        
+        final boolean needsSize = scaleMode != ScaleMode.None || (bitmapPool != null && BitmapPool.IsReuseSupported());
+        if(needsSize && size.x == 0 && !readIndexedSize()) {
+            readBitmapSize(is);
+            is = rewindStream(is);
+        }
+        
         if(scaleMode == ScaleMode.None) {
-            InputStream is = IOUtils.GetInputStreamForDrawable(location, path, context);
-            Bitmap b = BitmapFactory.decodeStream(is);
-            size.x = b.getWidth();
-            size.y = b.getHeight();
+            Bitmap b = decodeReusingBitmap(is, opts);
+            if(b != null) {
+                size.x = b.getWidth();
+                size.y = b.getHeight();
+            }
             scale = 1;
             return b;
         } else {
-            getBitmapSize();
-            
             // Detect sample size
             float wfactor = (float)size.x / maxWidth;
             float hfactor = (float)size.y / maxHeight;
@@ -387,8 +1306,7 @@ protected final Bitmap loadBitmap(ScaleMode scaleMode, int maxWidth, int maxHeig
             
             opts.inSampleSize = Math.max(1, (int)minfactor);
             
-            InputStream is = IOUtils.GetInputStreamForDrawable(location, path, context);
-            Bitmap b = BitmapFactory.decodeStream(is, null, opts);
+            Bitmap b = decodeReusingBitmap(is, opts);
             if(scaleMode == ScaleMode.Full && b != null) {
                 // recompute factors if inSample has been used
                 wfactor = (float)opts.outWidth / maxWidth;
@@ -396,7 +1314,12 @@ protected final Bitmap loadBitmap(ScaleMode scaleMode, int maxWidth, int maxHeig
                 scale = Math.min(1, Math.min(1/wfactor, 1/hfactor) );
                 if(scale<1) {
                     //Logger.error(getClass(), "sizes: " + size.x + "," + size.y + " (" + maxWidth +","+maxHeight + ") -> " + minfactor + ", " + scale);
-                    b = Bitmap.createScaledBitmap(b, (int)(opts.outWidth*scale), (int)(opts.outHeight*scale), false);
+                    final Bitmap decoded = b;
+                    b = Bitmap.createScaledBitmap(decoded, (int)(opts.outWidth*scale), (int)(opts.outHeight*scale), false);
+                    final BitmapPool pool = bitmapPool;
+                    if(pool != null && b != decoded) {
+                        pool.put(decoded);
+                    }
                 }
             }
             return b;
@@ -405,17 +1328,200 @@ protected final Bitmap loadBitmap(ScaleMode scaleMode, int maxWidth, int maxHeig
         // should we say anything?
     } catch (IOException e) {
         // should we say anything?
-    }  catch (java.lang.OutOfMemoryError e) {
-        // should we say anything?
-    } 
+    } finally {
+        IOUtils.CloseQuietly(is);
+    }
     return null;
 }
 
+/**
+ * Decodes the bitmap from the given stream with the given options, taking the memory for it from the manager's
+ * pool if possible. If the pooled bitmap can't be reused, decodes again without it from a new stream.
+ * The given stream is not closed.
+ * */
+@SuppressLint("NewApi")
+private Bitmap decodeReusingBitmap(InputStream is, BitmapFactory.Options opts)
+    throws IOException
+{
+    final BitmapPool pool = bitmapPool;
+    if(pool != null && BitmapPool.IsReuseSupported()) {
+        getBitmapSize();
+        final Bitmap.Config decodedConfig = opts.inPreferredConfig != null ? opts.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        opts.inMutable = true;
+        opts.inBitmap = pool.get(size.x, size.y, opts.inSampleSize, decodedConfig);
+    }
+    
+    try {
+        return BitmapFactory.decodeStream(is, null, opts);
+    } catch (IllegalArgumentException e) {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB || opts.inBitmap == null) {
+            throw e;
+        }
+        // the pooled bitmap was not suitable
+        opts.inBitmap = null;
+        final InputStream retryStream = openStream();
+        try {
+            return BitmapFactory.decodeStream(retryStream, null, opts);
+        } finally {
+            IOUtils.CloseQuietly(retryStream);
+        }
+    }
+}
+
 /**
  * Free memory occupied by the bitmap, if it's loaded
  * */
 public abstract void freeResources();
 
+/**
+ * Returns a cached tile, without accessing the file system. Tiles are not cached by default.
+ * @param tileKey The key for the tile, see getTile()
+ * */
+protected Bitmap getLoadedTile(String tileKey)
+{ return null; }
+
+/**
+ * Keeps a freshly decoded tile. Must be safe to call from any thread. Does nothing by default.
+ * */
+protected void storeTile(String tileKey, Bitmap tile)
+{ }
+
+/**
+ * Returns a tile, decoding it if it's not cached. See AbstractBitmapManager.getTile().
+ * */
+final Bitmap getTile(final int tileSize, final int level, final int x, final int y)
+{
+    final String tileKey = path + "@" + tileSize + "/" + level + ":" + x + "," + y;
+    final Bitmap cached = getLoadedTile(tileKey);
+    if(cached != null)
+        return cached;
+    
+    return loadCoalesced(tileKey, new Callable<Bitmap>() {
+        @Override
+        public Bitmap call()
+            throws IOException
+        {
+            Bitmap tile = getLoadedTile(tileKey);
+            if(tile == null) {
+                final long startMillis = SystemClock.uptimeMillis();
+                try {
+                    tile = decodeTile(tileSize, level, x, y);
+                } catch (OutOfMemoryError e) {
+                    Logger.error(AbstractBitmapManager.this.getClass(), "Out of memory decoding tile " + tileKey + ", releasing memory and retrying");
+                    onOutOfMemory();
+                    tile = decodeTile(tileSize, level, x, y);
+                } finally {
+                    recordDecodeTime(startMillis);
+                }
+                if(tile != null) {
+                    storeTile(tileKey, tile);
+                }
+            }
+            return tile;
+        }
+    });
+}
+
+/**
+ * Decodes the region of the file covered by a tile.
+ * */
+@SuppressLint("NewApi")
+private Bitmap decodeTile(int tileSize, int level, int x, int y)
+    throws IOException
+{
+    final BitmapTileDecoder decoder = getTileDecoder();
+    final int sample = 1 << level;
+    final long sourceTileSize = (long)tileSize * sample;
+    final long left = x * sourceTileSize, top = y * sourceTileSize;
+    if(left >= decoder.getWidth() || top >= decoder.getHeight())
+        return null;
+    
+    final Rect region = new Rect((int)left, (int)top,
+            (int)Math.min(left + sourceTileSize, decoder.getWidth()),
+            (int)Math.min(top + sourceTileSize, decoder.getHeight()));
+    if(needsOpacity()) {
+        final InputStream is = openStream();
+        try {
+            readOpacity(is);
+        } finally {
+            IOUtils.CloseQuietly(is);
+        }
+    }
+    
+    final BitmapFactory.Options opts = new BitmapFactory.Options();
+    opts.inSampleSize = sample;
+    opts.inPreferredConfig = getDecodeConfig();
+    
+    final BitmapPool pool = bitmapPool;
+    if(pool != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+        opts.inMutable = true;
+        opts.inBitmap = pool.get(region.right - region.left, region.bottom - region.top, sample, opts.inPreferredConfig);
+    }
+    
+    try {
+        return decoder.decode(region, opts);
+    } catch (IllegalArgumentException e) {
+        if(opts.inBitmap == null) {
+            throw e;
+        }
+        opts.inBitmap = null; // the pooled bitmap was not suitable
+        return decoder.decode(region, opts);
+    }
+}
+
+private synchronized BitmapTileDecoder getTileDecoder()
+    throws IOException
+{
+    if(tileDecoder == null || tileDecoder.isRecycled()) {
+        if(IOUtils.LocationOperatesOnFileStream(location)) {
+            tileDecoder = BitmapTileDecoder.Open(IOUtils.GetFile(location, path, context).getAbsolutePath());
+        } else {
+            final InputStream is = IOUtils.GetInputStreamForDrawable(location, path, context);
+            try {
+                tileDecoder = BitmapTileDecoder.Open(is);
+            } finally {
+                IOUtils.CloseQuietly(is);
+            }
+        }
+    }
+    return tileDecoder;
+}
+
+/**
+ * Releases the decoder used for tiles, if open. Cached tiles are released by freeResources().
+ * */
+synchronized void releaseTileDecoder()
+{
+    if(tileDecoder != null) {
+        tileDecoder.recycle();
+        tileDecoder = null;
+    }
+}
+
+}
+
+/**
+ * Buffered stream that keeps its beginning in memory while the header is read, so that it
+ * can be rewound with reset(). BitmapFactory marks the streams it decodes, which would
+ * otherwise shrink the read limit.
+ * */
+private static final class HeaderMarkedInputStream
+extends BufferedInputStream
+{
+    /** Bytes kept while reading a bitmap's header. Bigger headers require reopening the file */
+    private static final int HEADER_MARK_LIMIT = 64 * 1024;
+    
+    public HeaderMarkedInputStream(InputStream in)
+    {
+        super(in, 16 * 1024);
+        super.mark(HEADER_MARK_LIMIT);
+    }
+    
+    @Override
+    public synchronized void mark(int readlimit)
+    {
+        super.mark(Math.max(readlimit, HEADER_MARK_LIMIT));
+    }
 }
 
 /**
@@ -428,85 +1534,416 @@ public interface BackgroundLoadListener
 }
 
 /**
- * Returns a bitmap given a path, loading it in background if needed. In this case, no listener will be called.
- * If the Bitmap is already available, it is immediately returned.
+ * Listeners implementing this interface get a low quality preview of the bitmap before it's
+ * loaded, so that they can show something meanwhile. Previews are only decoded for bitmaps
+ * that are not in memory yet, and are not cached.
+ * */
+public interface ProgressiveLoadListener
+extends BackgroundLoadListener
+{
+    public void bitmapPreviewLoadedInManager(Bitmap preview, String path, AbstractBitmapManager manager);
+}
+
+public int getPreviewSize()
+{ return previewSize; }
+
+/**
+ * Sets the size of the previews given to ProgressiveLoadListeners. Previews are decoded
+ * subsampling the file by a power of 2, so they have between this size and twice it in
+ * their biggest dimension. Bitmaps that are not at least twice this size get no preview.
+ * @param previewSize The preview size, in pixels, or 0 to disable previews.
+ * */
+public void setPreviewSize(int previewSize)
+{ this.previewSize = Math.max(previewSize, 0); }
+
+/**
+ * Returns a bitmap given a path, loading it in background if needed, with default priority.
+ * If the Bitmap is already available, it is immediately returned and the listener is not called.
+ * Listeners are always called on the main thread.
+ * 
+ * A listener waits for only one bitmap at a time: if it was waiting for a different one,
+ * it won't be called for it anymore, and that load is cancelled if nobody else waits for it.
  * @param path The bitmap's path, used as a key to retrieve it.
  * @param listener The listener class who will be called once the bitmap is loaded
  * @return the requested Bitmap, if it's already loaded
  * */
+public Bitmap getInBackground(String path, BackgroundLoadListener listener)
+{ return getInBackground(path, listener, PRIORITY_DEFAULT); }
 
-public synchronized Bitmap getInBackground(String path, BackgroundLoadListener listener)
+/**
+ * Returns a bitmap given a path, loading it in background if needed.
+ * If the Bitmap is already available, it is immediately returned and the listener is not called.
+ * Listeners are always called on the main thread. ProgressiveLoadListeners are called first
+ * with a preview, if the load has not started yet.
+ * @param path The bitmap's path, used as a key to retrieve it.
+ * @param listener The listener class who will be called once the bitmap is loaded. Can be null.
+ * @param priority The load priority. Loads with higher values run first. If the bitmap is already
+ * waiting to be loaded with a lower priority, it gets the new one.
+ * @return the requested Bitmap, if it's already loaded
+ * */
+public Bitmap getInBackground(String path, BackgroundLoadListener listener, int priority)
 {
     BitmapRef ref = references.get(path);
-    if(ref != null) {
-        if(ref.isLoaded()) {
-            return ref.getBitmap(automaticScaleMode, maxBitmapWidth, maxBitmapHeight);
-        } else {
-            
-            HashSet<BackgroundLoadListener> listeners = backgroundListeners.get(path);
-            if(listeners == null) {
-                listeners = new HashSet<BackgroundLoadListener>();
-                backgroundListeners.put(path, listeners);
-                
-                AsyncLoadTask task = new AsyncLoadTask(path);
-                backgroundLoadTasks.add(task);
-            }
-            listeners.add(listener);
-            processLoadTaskQueue();
-            
-            return null;
-        }
-    } else {
+    if(ref == null) {
         Logger.error(getClass(), "Trying to retrieve bitmap in background without reference: "+path);
         return null;
-    } 
+    }
+    
+    final Bitmap loaded = ref.getLoadedBitmap(automaticScaleMode, maxBitmapWidth, maxBitmapHeight);
+    BackgroundLoad loadToExecute = null;
+    synchronized (backgroundLoads) {
+        if(listener != null) {
+            unbindBackgroundListener(listener, path);
+        }
+        
+        if(loaded != null) {
+            hitCount.incrementAndGet();
+            return loaded;
+        }
+        
+        BackgroundLoad load = backgroundLoads.get(path);
+        if(load == null || load.isOutrankedBy(priority, backgroundLoadOrder)) {
+            final BackgroundLoad newLoad = new BackgroundLoad(path, priority, nextBackgroundLoadOrderKey());
+            if(load != null) { // replaces a pending one, which will be skipped
+                newLoad.listeners.addAll(load.listeners);
+                load.cancelled = true;
+                --queuedBackgroundLoads;
+            }
+            backgroundLoads.put(path, newLoad);
+            ++queuedBackgroundLoads;
+            load = loadToExecute = newLoad;
+        }
+        
+        if(listener != null) {
+            load.listeners.add(listener);
+            backgroundListenerPaths.put(listener, path);
+        }
+    }
+    
+    if(loadToExecute != null) {
+        getLoadExecutor().execute(loadToExecute);
+    }
+    return null;
+}
+
+/**
+ * Stops waiting for the bitmap requested by the given listener, which won't be called.
+ * If no other listeners are waiting for it and it's not being loaded yet, the load is cancelled.
+ * @param listener The listener passed to getInBackground()
+ * */
+public void cancelInBackground(BackgroundLoadListener listener)
+{
+    synchronized (backgroundLoads) {
+        unbindBackgroundListener(listener, null);
+    }
 }
 
-private synchronized void processLoadTaskQueue()
+// must be called holding the lock on backgroundLoads
+private void unbindBackgroundListener(BackgroundLoadListener listener, String newPath)
 {
-    while(backgroundLoadTasks.size()>0 && runningLoadTasks.size()<numLoadThreads) {
-        AsyncLoadTask task = backgroundLoadTasks.get(0);
-        backgroundLoadTasks.remove(0);
-        runningLoadTasks.add(task);
-        task.execute();
+    final String oldPath = backgroundListenerPaths.get(listener);
+    if(oldPath != null && !oldPath.equals(newPath)) {
+        backgroundListenerPaths.remove(listener);
+        final BackgroundLoad oldLoad = backgroundLoads.get(oldPath);
+        if(oldLoad != null) {
+            oldLoad.listeners.remove(listener);
+            if(oldLoad.listeners.isEmpty() && !oldLoad.started) {
+                oldLoad.cancelled = true;
+                --queuedBackgroundLoads;
+                backgroundLoads.remove(oldPath);
+            }
+        }
     }
 }
 
-private synchronized void callListeners(AsyncLoadTask task, Bitmap bitmap)
+private long nextBackgroundLoadOrderKey()
+{
+    final long sequence = backgroundLoadCounter.getAndIncrement();
+    return backgroundLoadOrder == LoadOrder.LastInFirstOut ? -sequence : sequence;
+}
+
+private void callListeners(BackgroundLoad load, Bitmap bitmap)
 {
-    HashSet<BackgroundLoadListener> listeners = backgroundListeners.get(task.path);
+    BackgroundLoadListener [] listeners;
+    synchronized (backgroundLoads) {
+        if(backgroundLoads.get(load.path) == load) {
+            backgroundLoads.remove(load.path);
+        }
+        listeners = load.listeners.toArray(new BackgroundLoadListener[load.listeners.size()]);
+        load.listeners.clear();
+        for(BackgroundLoadListener l : listeners) {
+            backgroundListenerPaths.remove(l);
+        }
+    }
+    
     for(BackgroundLoadListener l : listeners) {
-        l.bitmapLoadedInManager(bitmap, task.path, AbstractBitmapManager.this);
+        l.bitmapLoadedInManager(bitmap, load.path, AbstractBitmapManager.this);
     }
+}
+
+private void callPreviewListeners(BackgroundLoad load, Bitmap preview)
+{
+    final ArrayList<ProgressiveLoadListener> listeners = new ArrayList<ProgressiveLoadListener>();
+    synchronized (backgroundLoads) {
+        for(BackgroundLoadListener l : load.listeners) {
+            if(l instanceof ProgressiveLoadListener) {
+                listeners.add((ProgressiveLoadListener) l);
+            }
+        }
+    }
+    
+    for(ProgressiveLoadListener l : listeners) {
+        l.bitmapPreviewLoadedInManager(preview, load.path, AbstractBitmapManager.this);
+    }
+}
+
+/**
+ * Returns the amount of memory, in bytes, that a single prefetch can fill with bitmaps.
+ * Unlimited by default; managers with a bounded cache should return less than its size,
+ * so that prefetched bitmaps don't evict the ones being displayed.
+ * */
+protected long getPrefetchBudget()
+{ return Long.MAX_VALUE; }
+
+/**
+ * Loads bitmaps in background with low priority, using the automatic scale mode,
+ * so that they are already in memory when requested. Loads requested with getInBackground()
+ * run before pending prefetches.
+ * @param keys The keys of the bitmaps to load, in the order they should be loaded.
+ * @return A handle to cancel the prefetch.
+ * */
+public Prefetch prefetch(Collection<String> keys)
+{ return prefetch(keys, automaticScaleMode, maxBitmapWidth, maxBitmapHeight); }
+
+/**
+ * Loads bitmaps in background with low priority and the given scale, so that they are
+ * already in memory when requested with the same scale. Loads requested with getInBackground()
+ * run before pending prefetches.
+ * 
+ * Bitmaps are loaded in the given order until the manager's prefetch budget is filled;
+ * the remaining ones are skipped.
+ * @param keys The keys of the bitmaps to load, in the order they should be loaded.
+ * @param scaleMode The scale mode to be used
+ * @param maxWidth, maxHeight The bitmaps' maximum size, if scaled
+ * @return A handle to cancel the prefetch.
+ * */
+public Prefetch prefetch(Collection<String> keys, ScaleMode scaleMode, int maxWidth, int maxHeight)
+{
+    if(scaleMode != ScaleMode.None && (maxWidth <= 0 || maxHeight <= 0)) {
+        throw new IllegalArgumentException("maxWidth and maxHeight must be >0");
+    }
+    
+    final Prefetch prefetch = new Prefetch(getPrefetchBudget());
+    final Executor executor = getLoadExecutor();
+    // keeps the given order, independently of the background load order
+    final long firstOrderKey = backgroundLoadCounter.getAndAdd(keys.size());
+    long orderKey = firstOrderKey;
+    for(String key : keys) {
+        final BitmapRef ref = references.get(key);
+        if(ref != null) {
+            prefetch.pending.incrementAndGet();
+            executor.execute(new PrefetchTask(prefetch, ref, scaleMode, maxWidth, maxHeight, orderKey++));
+        } else {
+            Logger.error(getClass(), "Trying to prefetch not referenced bitmap: "+key);
+        }
+    }
+    return prefetch;
+}
+
+/**
+ * Handle for a group of bitmaps being prefetched. All methods are thread safe.
+ * */
+public static final class Prefetch
+{
+    private final long budget;
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger loadedCount = new AtomicInteger();
+    private volatile boolean cancelled;
+    
+    private Prefetch(long budget)
+    { this.budget = budget; }
+    
+    /**
+     * Skips the bitmaps that haven't been loaded yet. Bitmaps being decoded right now are kept.
+     * */
+    public void cancel()
+    { cancelled = true; }
     
-    backgroundListeners.remove(task.path);
-    runningLoadTasks.remove(task);
+    public boolean isCancelled()
+    { return cancelled; }
     
-    processLoadTaskQueue();
+    /**
+     * Returns true if all bitmaps have been loaded or skipped.
+     * */
+    public boolean isFinished()
+    { return pending.get() == 0; }
+    
+    /**
+     * Returns the number of bitmaps decoded by this prefetch.
+     * */
+    public int getLoadedCount()
+    { return loadedCount.get(); }
+    
+    /**
+     * Reserves memory for a bitmap.
+     * @return false if the budget is exhausted, in which case the prefetch is cancelled.
+     * */
+    private boolean reserve(long bytes)
+    {
+        if(usedBytes.addAndGet(bytes) > budget) {
+            cancelled = true;
+            return false;
+        }
+        return true;
+    }
 }
 
 /**
- * AsyncTask used to load Bitmaps in background
+ * Task used to load a single prefetched bitmap.
  * */
-private final class AsyncLoadTask
-extends AsyncTask<Void, Void, Bitmap>
+private final class PrefetchTask
+extends PrioritizedTask
+{
+    final Prefetch prefetch;
+    final BitmapRef ref;
+    final ScaleMode scaleMode;
+    final int maxWidth, maxHeight;
+    
+    public PrefetchTask(Prefetch prefetch, BitmapRef ref, ScaleMode scaleMode, int maxWidth, int maxHeight, long orderKey)
+    {
+        super(PRIORITY_LOW, orderKey);
+        this.prefetch = prefetch;
+        this.ref = ref;
+        this.scaleMode = scaleMode;
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+    }
+    
+    @Override
+    public void run()
+    {
+        try {
+            if(prefetch.isCancelled())
+                return;
+            
+            final Bitmap loaded = ref.getLoadedBitmap(scaleMode, maxWidth, maxHeight);
+            if(loaded != null) {
+                prefetch.reserve(LRUBitmapCache.BitmapMemorySize(loaded));
+                return;
+            }
+            
+            final Point scaledSize = ref.getScaledSize(scaleMode, maxWidth, maxHeight);
+            if(scaledSize.x <= 0 || !prefetch.reserve(LRUBitmapCache.BitmapMemorySize(scaledSize.x, scaledSize.y, ref.getDecodeConfig())))
+                return;
+            
+            if(ref.getBitmap(scaleMode, maxWidth, maxHeight) != null) {
+                prefetch.loadedCount.incrementAndGet();
+            }
+        } finally {
+            prefetch.pending.decrementAndGet();
+        }
+    }
+}
+
+/**
+ * Base class for the tasks passed to the load executor. Tasks with higher priority run first,
+ * and then the ones with lower order key.
+ * */
+protected static abstract class PrioritizedTask
+implements Runnable, Comparable<PrioritizedTask>
+{
+    final int priority;
+    final long orderKey;
+    
+    public PrioritizedTask(int priority, long orderKey)
+    {
+        this.priority = priority;
+        this.orderKey = orderKey;
+    }
+    
+    @Override
+    public int compareTo(PrioritizedTask another)
+    {
+        if(priority != another.priority) {
+            return priority > another.priority ? -1 : 1;
+        }
+        return orderKey < another.orderKey ? -1 : (orderKey == another.orderKey ? 0 : 1);
+    }
+}
+
+/**
+ * Task used to load Bitmaps in background.
+ * Flags and listeners are guarded by the manager's backgroundLoads map.
+ * */
+private final class BackgroundLoad
+extends PrioritizedTask
 {
     final String path;
+    final HashSet<BackgroundLoadListener> listeners = new HashSet<BackgroundLoadListener>();
+    boolean started, cancelled;
     
-    public AsyncLoadTask(String path)
+    public BackgroundLoad(String path, int priority, long orderKey)
     {
+        super(priority, orderKey);
         this.path = path;
     }
     
+    boolean isOutrankedBy(int newPriority, LoadOrder order)
+    {
+        if(started)
+            return false;
+        return newPriority > priority || (newPriority == priority && order == LoadOrder.LastInFirstOut);
+    }
+    
     @Override
-    protected Bitmap doInBackground(Void... params)
+    public void run()
     {
-        return AbstractBitmapManager.this.get(path);
+        boolean wantsPreview = false;
+        synchronized (backgroundLoads) {
+            if(cancelled)
+                return;
+            started = true;
+            --queuedBackgroundLoads;
+            for(BackgroundLoadListener l : listeners) {
+                wantsPreview |= l instanceof ProgressiveLoadListener;
+            }
+        }
+        
+        runningBackgroundLoads.incrementAndGet();
+        try {
+            load(wantsPreview);
+        } finally {
+            runningBackgroundLoads.decrementAndGet();
+        }
     }
     
-    protected void onPostExecute(Bitmap bitmap)
+    private void load(boolean wantsPreview)
     {
-        callListeners(this, bitmap);
+        final BitmapRef ref = references.get(path);
+        final int currentPreviewSize = previewSize;
+        if(wantsPreview && ref != null && currentPreviewSize > 0
+                && ref.getLoadedBitmap(automaticScaleMode, maxBitmapWidth, maxBitmapHeight) == null) {
+            final Bitmap preview = ref.loadPreview(currentPreviewSize);
+            if(preview != null) {
+                mainThreadHandler.post(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        callPreviewListeners(BackgroundLoad.this, preview);
+                    }
+                });
+            }
+        }
+        
+        final Bitmap bitmap = AbstractBitmapManager.this.get(path);
+        mainThreadHandler.post(new Runnable() {
+            @Override
+            public void run()
+            {
+                callListeners(BackgroundLoad.this, bitmap);
+            }
+        });
     }
 }
 
@@ -23,6 +23,10 @@ import android.graphics.Paint;
 
 /**
  * Utility class to get colorized copies of a given bitmap.
+ * 
+ * To colorize repeatedly without allocating new bitmaps (for example, while the user
+ * picks a color), use colorizeInto() with the same target bitmap. To get many tints
+ * at once, use colorizeAll().
  * */
 public class BitmapColorizer
 {
@@ -30,6 +34,10 @@ protected final Paint colorPaint =          new Paint();
 protected final ColorMatrix colorMatrix =   new ColorMatrix();
 protected final Canvas colorCanvas =        new Canvas();
 
+/* Filter for the last applied color, reused while it doesn't change */
+private ColorMatrixColorFilter colorFilter;
+private int colorFilterColor;
+
 protected final Bitmap        baseBitmap;
 protected final int           bitmapWidth, bitmapHeight;
 protected final Bitmap.Config outputConfig;
@@ -121,21 +129,80 @@ public Bitmap colorize(int a, int r, int g, int b)
 public Bitmap colorize(int a, int r, int g, int b, int bgcolor)
 {
     try {
-        final float fa = a/256.0f, fr = r / 256.0f, fg = g / 256.0f, fb = b / 256.0f;
-
-        colorMatrix.setScale(fr, fg, fb, fa);
-        colorPaint.setColorFilter(new ColorMatrixColorFilter(colorMatrix));
         final Bitmap ret = Bitmap.createBitmap(bitmapWidth, bitmapHeight, outputConfig);
-        colorCanvas.setBitmap(ret);
-        if(bgcolor != Color.TRANSPARENT)
-            colorCanvas.drawColor(bgcolor);
-        
-        colorCanvas.drawBitmap(baseBitmap, 0, 0, colorPaint);
-
-        return ret;
+        return colorizeInto(ret, Color.argb(a, r, g, b), bgcolor);
     } catch(Exception e) {
         Logger.except(getClass(), e);
         return baseBitmap;
     }
 }
+
+/**
+ * Creates a bitmap that can be passed to colorizeInto(), with the source's size and the output config.
+ * */
+public Bitmap createTargetBitmap()
+{ return Bitmap.createBitmap(bitmapWidth, bitmapHeight, outputConfig); }
+
+/**
+ * Applies the color to the source bitmap, drawing the result into the given bitmap
+ * instead of allocating a new one. Its previous contents are replaced.
+ * @param target A mutable bitmap with the same size as the source bitmap (see createTargetBitmap())
+ * @param color The color to apply to the bitmap.
+ * @param bgcolor The background color for the result.
+ * @return The target bitmap
+ * */
+public synchronized Bitmap colorizeInto(Bitmap target, int color, int bgcolor)
+{
+    if(target.getWidth() != bitmapWidth || target.getHeight() != bitmapHeight || !target.isMutable()) {
+        throw new IllegalArgumentException("target must be mutable and have the same size as the source bitmap");
+    }
+    
+    if(colorFilter == null || colorFilterColor != color) {
+        final float fa = Color.alpha(color) / 256.0f, fr = Color.red(color) / 256.0f,
+                    fg = Color.green(color) / 256.0f, fb = Color.blue(color) / 256.0f;
+        colorMatrix.setScale(fr, fg, fb, fa);
+        colorFilter = new ColorMatrixColorFilter(colorMatrix);
+        colorFilterColor = color;
+        colorPaint.setColorFilter(colorFilter);
+    }
+    
+    target.eraseColor(bgcolor);
+    colorCanvas.setBitmap(target);
+    colorCanvas.drawBitmap(baseBitmap, 0, 0, colorPaint);
+    return target;
+}
+
+/**
+ * Applies several colors to the source bitmap.
+ * @param colors The colors to apply.
+ * @param bgcolor The background color for all results.
+ * @return The colorized copies, in the same order as the colors.
+ * */
+public Bitmap [] colorizeAll(int [] colors, int bgcolor)
+{
+    final Bitmap [] targets = new Bitmap[colors.length];
+    for(int i=0; i<colors.length; ++i) {
+        targets[i] = createTargetBitmap();
+    }
+    return colorizeAllInto(targets, colors, bgcolor);
+}
+
+/**
+ * Applies several colors to the source bitmap, drawing the results into the given bitmaps
+ * as colorizeInto() does.
+ * @param targets Mutable bitmaps with the same size as the source bitmap, one per color.
+ * @param colors The colors to apply.
+ * @param bgcolor The background color for all results.
+ * @return The targets array
+ * */
+public Bitmap [] colorizeAllInto(Bitmap [] targets, int [] colors, int bgcolor)
+{
+    if(targets.length != colors.length) {
+        throw new IllegalArgumentException("There must be one target per color");
+    }
+    for(int i=0; i<colors.length; ++i) {
+        colorizeInto(targets[i], colors[i], bgcolor);
+    }
+    return targets;
+}
 }
@@ -0,0 +1,225 @@
+package org.gskbyte.bitmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import org.gskbyte.util.IOUtils;
+import org.gskbyte.util.Logger;
+
+import android.content.Context;
+import android.os.Environment;
+import android.os.SystemClock;
+
+/**
+ * BitmapExistenceIndex class
+ *
+ * In-memory index of the files present in the directories where bitmaps are located, so that
+ * checking whether a bitmap file exists doesn't access the file system. Every directory is
+ * listed once, the first time one of its files is checked, instead of querying each file.
+ * That first listing is done in the calling thread and can take a while for big directories;
+ * call update() beforehand to list them in background.
+ *
+ * Listings older than the index's max age are still used, but refreshed in background.
+ * Files added or deleted by the app should be followed by a call to invalidate().
+ *
+ * Supports combinations of the assets, private and external locations. Resources are looked
+ * up in the resources table, which is already in memory. Private files are looked up by their
+ * last path component, as IOUtils does, because they're stored flat in the app's files directory.
+ * All methods are thread safe.
+ * */
+public class BitmapExistenceIndex
+{
+
+/** Default time after which listings are refreshed, in milliseconds */
+public static final long DEFAULT_MAX_AGE_MILLIS = 60 * 1000;
+
+/** Locations that can be listed, in the order in which files are searched */
+private static final int [] LISTABLE_LOCATIONS = {IOUtils.LOCATION_EXTERNAL, IOUtils.LOCATION_PRIVATE, IOUtils.LOCATION_ASSETS};
+
+private final Context context;
+private final long maxAgeMillis;
+private final Map<String, Listing> listings = new ConcurrentHashMap<String, Listing>();
+private final Map<String, Boolean> refreshingListings = new ConcurrentHashMap<String, Boolean>();
+
+private static final class Listing
+{
+    final Set<String> names;
+    final long time;
+
+    Listing(Set<String> names, long time)
+    {
+        this.names = names;
+        this.time = time;
+    }
+}
+
+/**
+ * Constructor, with the default max age.
+ * @param context The context used to access bitmap files.
+ * */
+public BitmapExistenceIndex(Context context)
+{ this(context, DEFAULT_MAX_AGE_MILLIS); }
+
+/**
+ * Constructor.
+ * @param context The context used to access bitmap files.
+ * @param maxAgeMillis Time after which listings are refreshed in background.
+ * */
+public BitmapExistenceIndex(Context context, long maxAgeMillis)
+{
+    this.context = context;
+    this.maxAgeMillis = maxAgeMillis;
+}
+
+public long getMaxAgeMillis()
+{ return maxAgeMillis; }
+
+/**
+ * Returns true if a file exists in any of the given locations. If its directory has not been
+ * listed yet, lists it in the calling thread; if its listing is too old, refreshes it in background.
+ * @param location The file's location, can be a combination of locations.
+ * @param path The file's path.
+ * @param refreshExecutor Executor for the background refreshes.
+ * */
+public boolean exists(int location, String path, Executor refreshExecutor)
+{
+    if(path.length() == 0)
+        return false;
+
+    final String name = IOUtils.LastPathComponent(path);
+    for(int singleLocation : LISTABLE_LOCATIONS) {
+        if((location & singleLocation) != 0 && getListing(singleLocation, DirectoryFor(singleLocation, path), refreshExecutor).names.contains(name))
+            return true;
+    }
+
+    if((location & IOUtils.LOCATION_RESOURCES) != 0) {
+        return IOUtils.GetResourceIdentifierForDrawable(path, context) != 0;
+    }
+    return false;
+}
+
+/**
+ * Lists in background the directories of the given files that haven't been listed yet or whose
+ * listings are too old. Different directories are listed in parallel if the executor allows it.
+ * @param location The files' location, can be a combination of locations.
+ * @param paths The files' paths.
+ * @param executor Executor for the listings.
+ * */
+public void update(int location, Collection<String> paths, Executor executor)
+{
+    for(int singleLocation : LISTABLE_LOCATIONS) {
+        if((location & singleLocation) != 0) {
+            final Set<String> directories = new HashSet<String>();
+            for(String path : paths) {
+                directories.add(DirectoryFor(singleLocation, path));
+            }
+
+            for(String directory : directories) {
+                final Listing listing = listings.get(KeyFor(singleLocation, directory));
+                if(listing == null || isStale(listing)) {
+                    scheduleListing(singleLocation, directory, executor);
+                }
+            }
+        }
+    }
+}
+
+/**
+ * Discards all listings, so that directories are listed again when needed.
+ * */
+public void invalidate()
+{ listings.clear(); }
+
+private Listing getListing(int location, String directory, Executor refreshExecutor)
+{
+    final String key = KeyFor(location, directory);
+    Listing listing = listings.get(key);
+    if(listing == null) {
+        // other threads may be listing it too, they will get the same result
+        listing = list(location, directory);
+        listings.put(key, listing);
+    } else if(isStale(listing)) {
+        scheduleListing(location, directory, refreshExecutor);
+    }
+    return listing;
+}
+
+private boolean isStale(Listing listing)
+{ return SystemClock.uptimeMillis() - listing.time > maxAgeMillis; }
+
+private void scheduleListing(final int location, final String directory, Executor executor)
+{
+    final String key = KeyFor(location, directory);
+    if(refreshingListings.put(key, Boolean.TRUE) == null) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    listings.put(key, list(location, directory));
+                } finally {
+                    refreshingListings.remove(key);
+                }
+            }
+        });
+    }
+}
+
+/**
+ * Lists the names of the files in a directory.
+ * @param location A single, listable location.
+ * @param directory The directory's path, empty for the location's root (always, for private files).
+ * @return The listing, with no names if the directory doesn't exist or can't be read.
+ * */
+private Listing list(int location, String directory)
+{
+    final long time = SystemClock.uptimeMillis();
+    String [] names = null;
+    switch(location) {
+    case IOUtils.LOCATION_ASSETS:
+        try {
+            names = context.getAssets().list(directory);
+        } catch (IOException e) {
+            Logger.except(getClass(), e);
+        }
+        break;
+    case IOUtils.LOCATION_PRIVATE:
+        names = context.getFilesDir().list();
+        break;
+    case IOUtils.LOCATION_EXTERNAL:
+        names = new File(Environment.getExternalStorageDirectory(), directory).list();
+        break;
+    }
+
+    if(names == null || names.length == 0) {
+        return new Listing(Collections.<String>emptySet(), time);
+    }
+
+    final Set<String> nameSet = new HashSet<String>(names.length * 2);
+    Collections.addAll(nameSet, names);
+    return new Listing(nameSet, time);
+}
+
+/**
+ * Returns the directory to list to find a file. Private files are all in the root directory.
+ * */
+private static String DirectoryFor(int location, String path)
+{
+    if(location == IOUtils.LOCATION_PRIVATE)
+        return "";
+
+    final int separator = path.lastIndexOf('/');
+    return separator >= 0 ? path.substring(0, separator) : "";
+}
+
+private static String KeyFor(int location, String directory)
+{ return location + ":" + directory; }
+
+}
@@ -0,0 +1,161 @@
+package org.gskbyte.bitmap;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * BitmapHeader class
+ *
+ * Reads the beginning of image files to know whether they have an alpha channel, so that
+ * opaque images can be decoded with a config that uses less memory. Supports PNG, JPEG
+ * and WebP files; other formats are considered translucent.
+ * */
+final class BitmapHeader
+{
+
+/** Maximum number of bytes read from a PNG file looking for transparency chunks */
+private static final int MAX_PNG_HEADER_LENGTH = 32 * 1024;
+
+private static final byte [] PNG_SIGNATURE = {(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+private static final int PNG_COLOR_TYPE_GRAY_ALPHA = 4;
+private static final int PNG_COLOR_TYPE_RGB_ALPHA = 6;
+
+private static final int WEBP_VP8X_ALPHA_FLAG = 0x10;
+private static final int WEBP_VP8L_SIGNATURE = 0x2f;
+
+private BitmapHeader()
+{ }
+
+/**
+ * Returns true if the image starting at the stream's current position has no transparent pixels.
+ * Consumes only the beginning of the stream.
+ * @param is The stream to read from
+ * @return true if the image is known to be opaque, false if it may have transparency
+ * */
+public static boolean IsOpaque(InputStream is)
+    throws IOException
+{
+    final byte [] signature = new byte[12];
+    if(ReadFully(is, signature, 0, signature.length) < signature.length)
+        return false;
+
+    if((signature[0] & 0xff) == 0xff && (signature[1] & 0xff) == 0xd8) {
+        return true; // JPEG doesn't support transparency
+    } else if(StartsWith(signature, PNG_SIGNATURE)) {
+        return IsOpaquePng(is, signature);
+    } else if(signature[0]=='R' && signature[1]=='I' && signature[2]=='F' && signature[3]=='F'
+            && signature[8]=='W' && signature[9]=='E' && signature[10]=='B' && signature[11]=='P') {
+        return IsOpaqueWebP(is);
+    } else {
+        return false;
+    }
+}
+
+/**
+ * Reads the PNG chunks before the image data. Images without alpha channel are opaque unless
+ * they have a tRNS chunk, which sets a transparent color or palette entries.
+ * @param signature The first 12 bytes of the file: the PNG signature and the IHDR chunk's length
+ * */
+private static boolean IsOpaquePng(InputStream is, byte [] signature)
+    throws IOException
+{
+    final byte [] chunk = new byte[8];
+    int chunkLength = ReadInt(signature, 8);
+    int read = signature.length;
+
+    // IHDR is always the first chunk: type, width, height, bit depth and color type
+    final byte [] ihdr = new byte[14];
+    if(ReadFully(is, ihdr, 0, ihdr.length) < ihdr.length || ihdr[0]!='I' || ihdr[1]!='H' || ihdr[2]!='D' || ihdr[3]!='R')
+        return false;
+    final int colorType = ihdr[13] & 0xff;
+    if(colorType == PNG_COLOR_TYPE_GRAY_ALPHA || colorType == PNG_COLOR_TYPE_RGB_ALPHA)
+        return false;
+
+    long toSkip = chunkLength - 10 + 4; // rest of IHDR and its CRC
+    read += ihdr.length;
+    while(read < MAX_PNG_HEADER_LENGTH) {
+        if(!SkipFully(is, toSkip) || ReadFully(is, chunk, 0, chunk.length) < chunk.length)
+            return false;
+        read += toSkip + chunk.length;
+
+        chunkLength = ReadInt(chunk, 0);
+        if(chunk[4]=='t' && chunk[5]=='R' && chunk[6]=='N' && chunk[7]=='S') {
+            return false;
+        } else if(chunk[4]=='I' && chunk[5]=='D' && chunk[6]=='A' && chunk[7]=='T') {
+            return true; // no transparency chunk before the image data
+        }
+        toSkip = (chunkLength & 0xffffffffL) + 4;
+    }
+    return false;
+}
+
+/**
+ * Reads the first WebP chunk. Lossy images are opaque, extended and lossless ones have an alpha flag.
+ * */
+private static boolean IsOpaqueWebP(InputStream is)
+    throws IOException
+{
+    final byte [] chunk = new byte[13];
+    if(ReadFully(is, chunk, 0, chunk.length) < chunk.length || chunk[0]!='V' || chunk[1]!='P' || chunk[2]!='8')
+        return false;
+
+    switch(chunk[3]) {
+    case ' ':
+        return true;
+    case 'X':
+        return (chunk[8] & WEBP_VP8X_ALPHA_FLAG) == 0;
+    case 'L':
+        // 14 bits width-1, 14 bits height-1, then the alpha bit, in little endian order
+        return (chunk[8] & 0xff) == WEBP_VP8L_SIGNATURE && (chunk[12] & 0x10) == 0;
+    default:
+        return false;
+    }
+}
+
+private static boolean StartsWith(byte [] data, byte [] prefix)
+{
+    for(int i=0; i<prefix.length; ++i) {
+        if(data[i] != prefix[i])
+            return false;
+    }
+    return true;
+}
+
+// big endian, as used in PNG
+private static int ReadInt(byte [] data, int offset)
+{
+    return ((data[offset] & 0xff) << 24) | ((data[offset+1] & 0xff) << 16)
+            | ((data[offset+2] & 0xff) << 8) | (data[offset+3] & 0xff);
+}
+
+private static int ReadFully(InputStream is, byte [] buffer, int offset, int length)
+    throws IOException
+{
+    int total = 0;
+    while(total < length) {
+        final int read = is.read(buffer, offset + total, length - total);
+        if(read < 0)
+            break;
+        total += read;
+    }
+    return total;
+}
+
+private static boolean SkipFully(InputStream is, long count)
+    throws IOException
+{
+    while(count > 0) {
+        final long skipped = is.skip(count);
+        if(skipped <= 0) {
+            if(is.read() < 0)
+                return false;
+            --count;
+        } else {
+            count -= skipped;
+        }
+    }
+    return count == 0;
+}
+
+}
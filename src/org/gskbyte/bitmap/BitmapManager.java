@@ -10,6 +10,11 @@
  ******************************************************************************/
 package org.gskbyte.bitmap;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import android.content.Context;
 import android.graphics.Bitmap;
 
@@ -21,12 +26,27 @@ import android.graphics.Bitmap;
  * 
  * This is a simple implementation that doesn't care too much about memory usage.
  * LRUBitmapManager is much more interesting.
+ * 
+ * Only one bitmap is kept per reference: it's loaded with the scale of the first request.
+ * 
+ * By default all loaded bitmaps are kept until they are released. A maximum number of loaded
+ * bitmaps can be set, so that the least recently used ones are released when it's exceeded.
+ * Released bitmaps are recovered without decoding them again if they are still in use
+ * somewhere else, see setReleasedBitmapsRecoveryEnabled().
  * */
 
 public class BitmapManager
 extends AbstractBitmapManager
 {
 
+private final AtomicInteger loadedCount = new AtomicInteger();
+private final AtomicLong residentBytes = new AtomicLong();
+
+/* References with a loaded bitmap, least recently used first. Guarded by itself,
+ * which is locked after the references' locks, never before */
+private final LinkedHashMap<BitmapReference, Boolean> loadedReferences = new LinkedHashMap<BitmapReference, Boolean>(16, 0.75f, true);
+private volatile int maxLoadedBitmaps;
+
 public BitmapManager(Context context)
 {
     super(context);
@@ -46,15 +66,51 @@ protected BitmapRef initializeReference(int location, String path)
 
 @Override
 public int countLoadedBitmaps()
+{ return loadedCount.get(); }
+
+@Override
+public long getResidentBytes()
+{ return residentBytes.get(); }
+
+public int getMaxLoadedBitmaps()
+{ return maxLoadedBitmaps; }
+
+/**
+ * Sets the maximum number of bitmaps kept in memory. When it's exceeded, the least
+ * recently used ones are released. Releases bitmaps right away if needed.
+ * @param maxLoadedBitmaps The maximum number of bitmaps, or 0 to keep all of them (the default)
+ * */
+public void setMaxLoadedBitmaps(int maxLoadedBitmaps)
 {
-    // this could be optimized, but it's not likely to be called often
-    int count = 0;
-    for(BitmapRef r : references.values()) {
-        if(((BitmapReference)r).bitmap != null)
-            ++count;
+    this.maxLoadedBitmaps = Math.max(maxLoadedBitmaps, 0);
+    trimLoadedBitmaps();
+}
+
+/**
+ * Releases the least recently used bitmaps while there are more than the maximum.
+ * */
+private void trimLoadedBitmaps()
+{
+    final int max = maxLoadedBitmaps;
+    while(max > 0 && loadedCount.get() > max) {
+        final BitmapReference eldest;
+        synchronized (loadedReferences) {
+            final Iterator<BitmapReference> it = loadedReferences.keySet().iterator();
+            if(!it.hasNext())
+                break;
+            eldest = it.next();
+            it.remove();
+        }
+        // released without holding the list's lock, see loadedReferences
+        eldest.freeResources();
     }
-    
-    return count;
+}
+
+@Override
+public synchronized void clear()
+{
+    releaseAllBitmaps();
+    super.clear();
 }
 
 @Override
@@ -73,7 +129,7 @@ final class BitmapReference
 extends AbstractBitmapManager.BitmapRef
 {
 
-Bitmap bitmap;
+volatile Bitmap bitmap;
 
 public BitmapReference(int location, String path)
 {
@@ -81,13 +137,50 @@ public BitmapReference(int location, String path)
 }
 
 @Override
-public Bitmap getBitmap(ScaleMode scaleMode, int maxWidth, int maxHeight)
+public Bitmap getLoadedBitmap(ScaleMode scaleMode, int maxWidth, int maxHeight)
+{
+    final Bitmap b = bitmap;
+    if(b != null && maxLoadedBitmaps > 0) {
+        synchronized (loadedReferences) {
+            loadedReferences.get(this); // moves it to the end
+        }
+    }
+    return b;
+}
+
+/**
+ * Recovers the bitmap if it was released but is still alive, otherwise decodes it.
+ * */
+@Override
+protected Bitmap loadMissingBitmap(ScaleMode scaleMode, int maxWidth, int maxHeight)
+{
+    final Bitmap recovered = recoverBitmap(path);
+    if(recovered != null) {
+        return recovered;
+    } else {
+        return super.loadMissingBitmap(scaleMode, maxWidth, maxHeight);
+    }
+}
+
+@Override
+protected void storeBitmap(Bitmap bitmap, ScaleMode scaleMode, int maxWidth, int maxHeight)
 {
-    if(bitmap == null) {
-        bitmap = loadBitmap(scaleMode, maxWidth, maxHeight);
+    synchronized (this) {
+        if(this.bitmap != null) {
+            residentBytes.addAndGet(-LRUBitmapCache.BitmapMemorySize(this.bitmap));
+        } else {
+            loadedCount.incrementAndGet();
+        }
+        this.bitmap = bitmap;
+        residentBytes.addAndGet(LRUBitmapCache.BitmapMemorySize(bitmap));
+        synchronized (loadedReferences) {
+            loadedReferences.put(this, Boolean.TRUE);
+        }
     }
     
-    return bitmap;
+    if(maxLoadedBitmaps > 0) {
+        trimLoadedBitmaps();
+    }
 }
 
 @Override
@@ -96,11 +189,20 @@ public boolean isLoaded()
     return bitmap != null;
 }
 
+/**
+ * Releases the bitmap, keeping it recoverable while it's used somewhere else.
+ * */
 @Override
-public void freeResources()
+public synchronized void freeResources()
 {
     if(bitmap!=null) {
         //bitmap.recycle();
+        residentBytes.addAndGet(-LRUBitmapCache.BitmapMemorySize(bitmap));
+        loadedCount.decrementAndGet();
+        synchronized (loadedReferences) {
+            loadedReferences.remove(this);
+        }
+        releaseBitmap(path, bitmap);
         bitmap = null;
     }
 }
@@ -0,0 +1,153 @@
+package org.gskbyte.bitmap;
+
+/**
+ * BitmapManagerStats class
+ *
+ * Snapshot of the usage figures of a bitmap manager, returned by
+ * AbstractBitmapManager.getStats(). Counts are accumulated since the manager
+ * was created, so that rates can be computed between two snapshots.
+ * */
+public final class BitmapManagerStats
+{
+
+/** Upper bounds (exclusive) of the decode time histogram buckets, in milliseconds. The last bucket has no bound */
+public static final int [] DECODE_TIME_BUCKET_BOUNDS = {1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024};
+
+private final long residentBytes;
+private final int loadedBitmaps;
+private final long hitCount, missCount, evictionCount, recoveredCount;
+private final long [] decodeTimeHistogram;
+private final int inFlightLoads, queuedBackgroundLoads, runningBackgroundLoads;
+
+BitmapManagerStats(long residentBytes, int loadedBitmaps,
+        long hitCount, long missCount, long evictionCount, long recoveredCount,
+        long [] decodeTimeHistogram,
+        int inFlightLoads, int queuedBackgroundLoads, int runningBackgroundLoads)
+{
+    this.residentBytes = residentBytes;
+    this.loadedBitmaps = loadedBitmaps;
+    this.hitCount = hitCount;
+    this.missCount = missCount;
+    this.evictionCount = evictionCount;
+    this.recoveredCount = recoveredCount;
+    this.decodeTimeHistogram = decodeTimeHistogram;
+    this.inFlightLoads = inFlightLoads;
+    this.queuedBackgroundLoads = queuedBackgroundLoads;
+    this.runningBackgroundLoads = runningBackgroundLoads;
+}
+
+/**
+ * Returns the index of the histogram bucket for a decode time.
+ * */
+static int DecodeTimeBucket(long millis)
+{
+    for(int i=0; i<DECODE_TIME_BUCKET_BOUNDS.length; ++i) {
+        if(millis < DECODE_TIME_BUCKET_BOUNDS[i])
+            return i;
+    }
+    return DECODE_TIME_BUCKET_BOUNDS.length;
+}
+
+/**
+ * Returns the memory used by the bitmaps kept by the manager, in bytes.
+ * */
+public long getResidentBytes()
+{ return residentBytes; }
+
+/**
+ * Returns the number of references with a bitmap in memory.
+ * */
+public int getLoadedBitmaps()
+{ return loadedBitmaps; }
+
+/**
+ * Returns the number of requests served with a bitmap already in memory.
+ * */
+public long getHitCount()
+{ return hitCount; }
+
+/**
+ * Returns the number of requests that required loading a bitmap.
+ * */
+public long getMissCount()
+{ return missCount; }
+
+/**
+ * Returns the rate of requests served from memory, in the range [0,1].
+ * */
+public float getHitRate()
+{
+    final long total = hitCount + missCount;
+    return total > 0 ? (float)hitCount / total : 0;
+}
+
+/**
+ * Returns the number of bitmaps released by the manager to stay within its memory budget.
+ * */
+public long getEvictionCount()
+{ return evictionCount; }
+
+/**
+ * Returns the number of released bitmaps that were recovered from the weak tier instead of decoded again.
+ * */
+public long getRecoveredCount()
+{ return recoveredCount; }
+
+/**
+ * Returns the number of decoded files.
+ * */
+public long getDecodeCount()
+{
+    long count = 0;
+    for(long c : decodeTimeHistogram) {
+        count += c;
+    }
+    return count;
+}
+
+/**
+ * Returns the number of decodes per time bucket. Bucket i counts decodes faster than
+ * DECODE_TIME_BUCKET_BOUNDS[i] milliseconds (and not faster than the previous bound);
+ * the last one counts the slower decodes.
+ * */
+public long [] getDecodeTimeHistogram()
+{ return decodeTimeHistogram.clone(); }
+
+/**
+ * Returns the number of bitmaps being loaded right now, in any thread.
+ * */
+public int getInFlightLoads()
+{ return inFlightLoads; }
+
+/**
+ * Returns the number of background loads waiting for a thread.
+ * */
+public int getQueuedBackgroundLoads()
+{ return queuedBackgroundLoads; }
+
+/**
+ * Returns the number of background loads being run right now.
+ * */
+public int getRunningBackgroundLoads()
+{ return runningBackgroundLoads; }
+
+@Override
+public String toString()
+{
+    final StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%.2f MB in %d bitmaps, hits %d, misses %d (%.1f%%), evictions %d, recovered %d",
+            residentBytes/(1024*1024f), loadedBitmaps, hitCount, missCount, getHitRate()*100, evictionCount, recoveredCount));
+    sb.append(String.format(", loads %d in flight, %d queued, %d running, decode times:",
+            inFlightLoads, queuedBackgroundLoads, runningBackgroundLoads));
+    for(int i=0; i<decodeTimeHistogram.length; ++i) {
+        if(i < DECODE_TIME_BUCKET_BOUNDS.length) {
+            sb.append(" <").append(DECODE_TIME_BUCKET_BOUNDS[i]);
+        } else {
+            sb.append(" >=").append(DECODE_TIME_BUCKET_BOUNDS[i-1]);
+        }
+        sb.append("ms:").append(decodeTimeHistogram[i]);
+    }
+    return sb.toString();
+}
+
+}
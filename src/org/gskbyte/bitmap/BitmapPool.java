@@ -0,0 +1,221 @@
+package org.gskbyte.bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * BitmapPool class
+ *
+ * Keeps bitmaps that are not used anymore, so that their memory can be reused
+ * when decoding new ones, using BitmapFactory.Options.inBitmap. This avoids
+ * allocating big chunks of memory for every decoded bitmap, and the garbage
+ * collections that follow.
+ *
+ * Bitmaps are grouped by their size in bytes. Until Android 4.4 a bitmap can
+ * only be reused to decode another one with the very same dimensions and without
+ * subsampling; since then, any bitmap big enough can be reused.
+ *
+ * Bitmaps put in the pool must not be used anymore by anyone else, because their
+ * contents will be overwritten.
+ *
+ * When the pool is full, the oldest bitmaps are discarded. All methods are thread safe.
+ * */
+public class BitmapPool
+{
+
+/** Bitmaps bigger than the requested size by this factor are not reused, to avoid wasting memory */
+private static final int MAX_REUSE_SIZE_FACTOR = 2;
+
+private final int maxSize;
+private int size;
+private int hitCount, missCount;
+
+private final TreeMap<Integer, LinkedList<Bitmap>> buckets = new TreeMap<Integer, LinkedList<Bitmap>>();
+private final LinkedList<Bitmap> bitmapsByAge = new LinkedList<Bitmap>(); // oldest first
+
+/**
+ * Constructs a pool with the given max size
+ * @param maxSize The maximum size of all pooled bitmaps, in bytes
+ * */
+public BitmapPool(int maxSize)
+{
+    if(maxSize <= 0) {
+        throw new IllegalArgumentException("maxSize must be > 0");
+    }
+    this.maxSize = maxSize;
+}
+
+/**
+ * Returns true if the running Android version supports reusing bitmaps when decoding.
+ * */
+public static boolean IsReuseSupported()
+{ return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB; }
+
+/**
+ * Returns the maximum size of the pool, in bytes.
+ * */
+public int getMaxSize()
+{ return maxSize; }
+
+/**
+ * Returns the size of all pooled bitmaps, in bytes.
+ * */
+public synchronized int size()
+{ return size; }
+
+/**
+ * Returns the number of pooled bitmaps.
+ * */
+public synchronized int count()
+{ return bitmapsByAge.size(); }
+
+/**
+ * Returns the number of times that a bitmap could be reused for decoding.
+ * */
+public synchronized int hitCount()
+{ return hitCount; }
+
+/**
+ * Returns the number of times that no bitmap could be reused for decoding, and a new one had to be allocated.
+ * */
+public synchronized int missCount()
+{ return missCount; }
+
+/**
+ * Adds a bitmap to the pool, if it can be reused. Only mutable, non recycled bitmaps are accepted.
+ * @param bitmap The bitmap to pool. Must not be used anymore by the caller.
+ * @return true if the bitmap has been added to the pool
+ * */
+public synchronized boolean put(Bitmap bitmap)
+{
+    if(!IsReuseSupported() || bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+        return false;
+    }
+
+    final int byteCount = ByteCount(bitmap);
+    if(byteCount > maxSize) {
+        return false;
+    }
+
+    LinkedList<Bitmap> bucket = buckets.get(byteCount);
+    if(bucket == null) {
+        bucket = new LinkedList<Bitmap>();
+        buckets.put(byteCount, bucket);
+    }
+    bucket.add(bitmap);
+    bitmapsByAge.add(bitmap);
+    size += byteCount;
+
+    trimToSize(maxSize);
+    return true;
+}
+
+/**
+ * Returns a bitmap that can be used as BitmapFactory.Options.inBitmap to decode an image,
+ * and removes it from the pool.
+ * @param sourceWidth The width of the image to decode.
+ * @param sourceHeight The height of the image to decode.
+ * @param inSampleSize The sample size that will be used to decode.
+ * @param config The config for the decoded bitmap.
+ * @return A bitmap that can be reused, or null if there is none.
+ * */
+@SuppressLint("NewApi")
+public synchronized Bitmap get(int sourceWidth, int sourceHeight, int inSampleSize, Bitmap.Config config)
+{
+    Bitmap bitmap = null;
+    if(sourceWidth > 0 && sourceHeight > 0 && IsReuseSupported()) {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // the decoder rounds the sample size down to a power of 2, the smallest one gives the biggest size
+            final int sample = Integer.highestOneBit(Math.max(inSampleSize, 1));
+            final int width = (sourceWidth + sample - 1) / sample;
+            final int height = (sourceHeight + sample - 1) / sample;
+            final int requiredSize = LRUBitmapCache.BitmapMemorySize(width, height, config);
+
+            final Map.Entry<Integer, LinkedList<Bitmap>> entry = buckets.ceilingEntry(requiredSize);
+            if(entry != null && entry.getKey() <= requiredSize * MAX_REUSE_SIZE_FACTOR) {
+                bitmap = entry.getValue().getFirst();
+            }
+        } else if(inSampleSize <= 1) {
+            final int requiredSize = LRUBitmapCache.BitmapMemorySize(sourceWidth, sourceHeight, config);
+            final LinkedList<Bitmap> bucket = buckets.get(requiredSize);
+            if(bucket != null) {
+                for(Bitmap b : bucket) {
+                    if(b.getWidth() == sourceWidth && b.getHeight() == sourceHeight && b.getConfig() == config) {
+                        bitmap = b;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    if(bitmap != null) {
+        remove(bitmap);
+        ++hitCount;
+    } else {
+        ++missCount;
+    }
+    return bitmap;
+}
+
+/**
+ * Removes all bitmaps from the pool.
+ * */
+public synchronized void clear()
+{ trimToSize(0); }
+
+/**
+ * Removes the oldest bitmaps until the pool has the given size.
+ * @param maxSize The maximum size for the pooled bitmaps, in bytes
+ * */
+public synchronized void trimToSize(int maxSize)
+{
+    final Iterator<Bitmap> it = bitmapsByAge.iterator();
+    while(size > maxSize && it.hasNext()) {
+        final Bitmap oldest = it.next();
+        it.remove();
+        removeFromBucket(oldest);
+    }
+}
+
+// must be called holding the lock
+private void remove(Bitmap bitmap)
+{
+    bitmapsByAge.remove(bitmap);
+    removeFromBucket(bitmap);
+}
+
+// must be called holding the lock
+private void removeFromBucket(Bitmap bitmap)
+{
+    final int byteCount = ByteCount(bitmap);
+    final LinkedList<Bitmap> bucket = buckets.get(byteCount);
+    if(bucket != null && bucket.remove(bitmap)) {
+        size -= byteCount;
+        if(bucket.isEmpty()) {
+            buckets.remove(byteCount);
+        }
+    }
+}
+
+/**
+ * Returns the memory that can be reused from a bitmap, which can be bigger than its current size
+ * if it has been reconfigured.
+ * */
+@SuppressLint("NewApi")
+private static int ByteCount(Bitmap bitmap)
+{
+    if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+        return bitmap.getAllocationByteCount();
+    } else {
+        return LRUBitmapCache.BitmapMemorySize(bitmap);
+    }
+}
+
+}
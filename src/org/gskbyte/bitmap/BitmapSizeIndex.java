@@ -0,0 +1,266 @@
+package org.gskbyte.bitmap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.gskbyte.util.IOUtils;
+import org.gskbyte.util.Logger;
+
+import android.content.Context;
+import android.graphics.Point;
+
+/**
+ * BitmapSizeIndex class
+ *
+ * Persistent index with the dimensions of bitmap files, so that they can be known
+ * without reading the files' headers after the app is restarted.
+ *
+ * Every entry stores the modification date and length of the file it describes. For combined
+ * locations, the file is searched as when it's read: external storage, private folder, assets.
+ * For files in the assets and resources, those of the application package are used,
+ * so that all of them are invalidated when the app is updated. Entries are validated
+ * once, when the index is loaded, so that queries don't access the file system.
+ *
+ * The index is stored in a compact binary file. All methods are thread safe.
+ * */
+public class BitmapSizeIndex
+{
+
+private static final int FILE_MAGIC = 0x42534958; // "BSIX"
+private static final int FILE_VERSION = 1;
+
+private final Context context;
+private final File file;
+private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+private final AtomicBoolean dirty = new AtomicBoolean();
+private volatile boolean loaded;
+
+private static final class Entry
+{
+    final int location;
+    final String path;
+    final long modified, length;
+    final int width, height;
+
+    Entry(int location, String path, long modified, long length, int width, int height)
+    {
+        this.location = location;
+        this.path = path;
+        this.modified = modified;
+        this.length = length;
+        this.width = width;
+        this.height = height;
+    }
+}
+
+/**
+ * Constructor. The index is empty until load() is called.
+ * @param context The context used to access bitmap files.
+ * @param file The file where the index is stored.
+ * */
+public BitmapSizeIndex(Context context, File file)
+{
+    this.context = context;
+    this.file = file;
+}
+
+/**
+ * Creates an index stored in the app's cache directory.
+ * @param context The context used to access bitmap files.
+ * @param name The index file name.
+ * */
+public static BitmapSizeIndex InCacheDirectory(Context context, String name)
+{ return new BitmapSizeIndex(context, new File(context.getCacheDir(), name)); }
+
+public File getFile()
+{ return file; }
+
+/**
+ * Returns true if the stored index has already been loaded.
+ * */
+public boolean isLoaded()
+{ return loaded; }
+
+/**
+ * Returns true if there are entries that haven't been saved.
+ * */
+public boolean isDirty()
+{ return dirty.get(); }
+
+/**
+ * Returns the number of indexed files.
+ * */
+public int size()
+{ return entries.size(); }
+
+/**
+ * Returns the size of a bitmap, if indexed. Doesn't access the file system.
+ * @param location The bitmap's location (see IOUtils)
+ * @param path The bitmap's path
+ * @return The bitmap's size, or null if it's not indexed
+ * */
+public Point get(int location, String path)
+{
+    final Entry e = entries.get(KeyFor(location, path));
+    if(e != null) {
+        return new Point(e.width, e.height);
+    } else {
+        return null;
+    }
+}
+
+/**
+ * Indexes the size of a bitmap. Reads the file's modification date and length.
+ * @param location The bitmap's location (see IOUtils)
+ * @param path The bitmap's path
+ * @param width The bitmap's width
+ * @param height The bitmap's height
+ * */
+public void put(int location, String path, int width, int height)
+{
+    if(width <= 0 || height <= 0)
+        return;
+
+    final File f = fileToValidate(location, path);
+    entries.put(KeyFor(location, path), new Entry(location, path, f.lastModified(), f.length(), width, height));
+    dirty.set(true);
+}
+
+/**
+ * Removes all entries. The stored file is not modified until save() is called.
+ * */
+public void clear()
+{
+    entries.clear();
+    dirty.set(true);
+}
+
+/**
+ * Reads the stored index, discarding the entries whose files have changed.
+ * Accesses the file system, shouldn't be called from the UI thread.
+ * Entries added before loading are kept.
+ * */
+public synchronized void load()
+{
+    if(loaded)
+        return;
+
+    if(file.exists()) {
+        DataInputStream is = null;
+        try {
+            is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if(is.readInt() != FILE_MAGIC || is.readInt() != FILE_VERSION) {
+                throw new IOException("Unknown index format: " + file);
+            }
+
+            File packageFile = null;
+            long packageModified = 0, packageLength = 0;
+            int discarded = 0;
+            final int count = is.readInt();
+            for(int i=0; i<count; ++i) {
+                final Entry e = new Entry(is.readInt(), is.readUTF(), is.readLong(), is.readLong(), is.readInt(), is.readInt());
+                final long modified, length;
+                final File f = IOUtils.GetFileCombinedLocation(e.location, e.path, context);
+                if(f != null) {
+                    modified = f.lastModified();
+                    length = f.length();
+                } else {
+                    if(packageFile == null) { // the same for all packaged files
+                        packageFile = new File(context.getPackageCodePath());
+                        packageModified = packageFile.lastModified();
+                        packageLength = packageFile.length();
+                    }
+                    modified = packageModified;
+                    length = packageLength;
+                }
+
+                final String key = KeyFor(e.location, e.path);
+                if(e.modified == modified && e.length == length) {
+                    if(!entries.containsKey(key)) {
+                        entries.put(key, e);
+                    }
+                } else {
+                    ++discarded;
+                }
+            }
+
+            if(discarded > 0) {
+                dirty.set(true);
+            }
+        } catch (IOException e) {
+            Logger.except(getClass(), e, "Discarding bitmap size index");
+            dirty.set(true);
+        } finally {
+            IOUtils.CloseQuietly(is);
+        }
+    }
+
+    loaded = true;
+}
+
+/**
+ * Stores the index, if it has changes. The file is replaced atomically.
+ * Accesses the file system, shouldn't be called from the UI thread.
+ * @return true if the index is stored
+ * */
+public synchronized boolean save()
+{
+    if(!dirty.getAndSet(false))
+        return true;
+
+    final File tempFile = new File(file.getPath() + ".tmp");
+    DataOutputStream os = null;
+    boolean success = false;
+    try {
+        final Entry [] snapshot = entries.values().toArray(new Entry[0]);
+        os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        os.writeInt(FILE_MAGIC);
+        os.writeInt(FILE_VERSION);
+        os.writeInt(snapshot.length);
+        for(Entry e : snapshot) {
+            os.writeInt(e.location);
+            os.writeUTF(e.path);
+            os.writeLong(e.modified);
+            os.writeLong(e.length);
+            os.writeInt(e.width);
+            os.writeInt(e.height);
+        }
+        os.close();
+        os = null;
+        success = tempFile.renameTo(file);
+    } catch (IOException e) {
+        Logger.except(getClass(), e);
+    } finally {
+        IOUtils.CloseQuietly(os);
+    }
+
+    if(!success) {
+        tempFile.delete();
+        dirty.set(true);
+    }
+    return success;
+}
+
+/**
+ * Returns the file whose modification date and length validate an entry: the one that is read
+ * for the location, or the application package if it's in the assets or resources.
+ * */
+private File fileToValidate(int location, String path)
+{
+    final File f = IOUtils.GetFileCombinedLocation(location, path, context);
+    return f != null ? f : new File(context.getPackageCodePath());
+}
+
+private static String KeyFor(int location, String path)
+{ return location + ":" + path; }
+
+}
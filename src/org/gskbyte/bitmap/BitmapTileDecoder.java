@@ -0,0 +1,67 @@
+package org.gskbyte.bitmap;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+/**
+ * BitmapTileDecoder class
+ *
+ * Decodes rectangular regions of an image file, keeping the decoder open between calls.
+ * Wraps a BitmapRegionDecoder, which requires Android 2.3.3: this class must not be
+ * used in older versions.
+ * */
+@SuppressLint("NewApi")
+final class BitmapTileDecoder
+{
+
+private final BitmapRegionDecoder decoder;
+
+private BitmapTileDecoder(BitmapRegionDecoder decoder)
+{ this.decoder = decoder; }
+
+/**
+ * Opens a decoder for a file in the file system, which is faster than reading it from a stream.
+ * @param filePath The file's absolute path
+ * */
+public static BitmapTileDecoder Open(String filePath)
+    throws IOException
+{ return new BitmapTileDecoder(BitmapRegionDecoder.newInstance(filePath, false)); }
+
+/**
+ * Opens a decoder reading the given stream. The stream is not closed.
+ * */
+public static BitmapTileDecoder Open(InputStream is)
+    throws IOException
+{ return new BitmapTileDecoder(BitmapRegionDecoder.newInstance(is, false)); }
+
+public int getWidth()
+{ return decoder.getWidth(); }
+
+public int getHeight()
+{ return decoder.getHeight(); }
+
+/**
+ * Decodes a region of the image.
+ * @param region The region to decode, in original image coordinates
+ * @param opts The decoding options, with inSampleSize and optionally inBitmap (Android 4.1+)
+ * @return The decoded bitmap, or null if it could not be decoded
+ * */
+public Bitmap decode(Rect region, BitmapFactory.Options opts)
+{ return decoder.decodeRegion(region, opts); }
+
+public boolean isRecycled()
+{ return decoder.isRecycled(); }
+
+/**
+ * Frees the decoder's native memory. It can't be used anymore.
+ * */
+public void recycle()
+{ decoder.recycle(); }
+
+}
@@ -10,7 +10,7 @@
  ******************************************************************************/
 package org.gskbyte.bitmap;
 
-import org.gskbyte.util.Logger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -20,6 +20,9 @@ import android.graphics.Color;
 /**
  * A class that produces colorized version of Bitmaps, but keeps them in
  * a cache in order to improve speed.
+ * 
+ * Colors can be quantized, so that similar colors share the same cached copy. The
+ * cache can be split in stripes with their own lock, so several threads can colorize at once.
  * */
 public final class CachedBitmapColorizer extends BitmapColorizer
 {
@@ -39,11 +42,31 @@ extends LRUBitmapCache<Integer> // int color value used as key
     { return fixedBitmapByteCount; }
     
     protected void entryRemoved(boolean evicted, Integer key, Bitmap oldValue, Bitmap newValue)
-    { Logger.info(getClass(), "Entry removed from cache, "+size()/fixedBitmapByteCount+" elements use " + cache.size()/1024 +"/" + getMaxSize()/1024 + "KB used"); }
+    {
+        if(evicted)
+            evictionCount.incrementAndGet();
+    }
 }
 
-private final FixedSizeBitmapCache cache;
+/**
+ * A part of the cache, with its own colorizer so that it can draw without waiting for other stripes.
+ * */
+private final class Stripe
+{
+    final FixedSizeBitmapCache cache;
+    final BitmapColorizer colorizer;
+    
+    Stripe(int copies, int bitmapMemorySize)
+    {
+        cache = new FixedSizeBitmapCache(copies*bitmapMemorySize, bitmapMemorySize);
+        colorizer = new BitmapColorizer(baseBitmap, outputConfig);
+    }
+}
+
+private final Stripe [] stripes;
 private final int backgroundColor;
+private final int quantizationBits;
+private final AtomicLong hitCount = new AtomicLong(), missCount = new AtomicLong(), evictionCount = new AtomicLong();
 
 /**
  * Constructor.
@@ -54,11 +77,42 @@ private final int backgroundColor;
  * */
 
 public CachedBitmapColorizer(Bitmap bitmap, Bitmap.Config outputConfig, int backgroundColor, int copiesInCache)
+{
+    this(bitmap, outputConfig, backgroundColor, copiesInCache, 0, 1);
+}
+
+/**
+ * Constructor with quantization and striping.
+ * @param bitmap The source bitmap to which to apply color.
+ * @param outputConfig The bitmapConfig to use for the resulting bitmaps.
+ * @param backgroundColor The background color for all generated bitmaps.
+ * @param copiesInCache The number of copies to keep in cache
+ * @param quantizationBits Number of low bits ignored in the red, green and blue components, in the range [0,7].
+ * Colors that round to the same values give the same copy, colorized with the quantized color.
+ * Alpha is not quantized.
+ * @param numStripes Number of parts in which the cache is split, limited to copiesInCache.
+ * More stripes allow more threads colorizing at once; the copies are shared out among them.
+ * */
+public CachedBitmapColorizer(Bitmap bitmap, Bitmap.Config outputConfig, int backgroundColor, int copiesInCache,
+        int quantizationBits, int numStripes)
 {
     super(bitmap, outputConfig);
+    if(quantizationBits < 0 || quantizationBits > 7) {
+        throw new IllegalArgumentException("quantizationBits must be in the range [0,7]");
+    }
+    
     this.backgroundColor = backgroundColor;
-    int bitmapMemorySize = LRUBitmapCache.BitmapMemorySize(bitmap.getWidth(), bitmap.getHeight(), outputConfig);
-    cache = new FixedSizeBitmapCache(copiesInCache*bitmapMemorySize, bitmapMemorySize);
+    this.quantizationBits = quantizationBits;
+    
+    final int copies = Math.max(copiesInCache, 1);
+    final int stripeCount = Integer.highestOneBit(Math.max(1, Math.min(numStripes, copies)));
+    final int bitmapMemorySize = LRUBitmapCache.BitmapMemorySize(bitmap.getWidth(), bitmap.getHeight(), outputConfig);
+    this.stripes = new Stripe[stripeCount];
+    for(int i=0; i<stripeCount; ++i) {
+        // the first stripes take the remainder, so that they add up to copies
+        final int stripeCopies = copies / stripeCount + (i < copies % stripeCount ? 1 : 0);
+        stripes[i] = new Stripe(stripeCopies, bitmapMemorySize);
+    }
 }
 
 /**
@@ -74,6 +128,43 @@ public CachedBitmapColorizer(Context context, int drawableResource, Bitmap.Confi
     this(BitmapFactory.decodeResource(context.getResources(), drawableResource), outputConfig, backgroundColor, copiesInCache);
 }
 
+/**
+ * Returns the color with which a given one is colorized, after quantization.
+ * Red, green and blue are rounded to the nearest quantized value, 0xFF included.
+ * */
+public int quantize(int color)
+{
+    if(quantizationBits == 0)
+        return color;
+    return Color.argb(Color.alpha(color),
+            QuantizeComponent(Color.red(color), quantizationBits),
+            QuantizeComponent(Color.green(color), quantizationBits),
+            QuantizeComponent(Color.blue(color), quantizationBits));
+}
+
+private static int QuantizeComponent(int component, int bits)
+{
+    final int rounded = ((component + (1 << (bits-1))) >> bits) << bits;
+    return Math.min(rounded, 0xFF);
+}
+
+/**
+ * Returns the number of times a colorized copy was found in the cache.
+ * */
+public long hitCount()
+{ return hitCount.get(); }
+
+/**
+ * Returns the number of times a colorized copy had to be created.
+ * */
+public long missCount()
+{ return missCount.get(); }
+
+/**
+ * Returns the number of copies evicted from the cache because it was full.
+ * */
+public long evictionCount()
+{ return evictionCount.get(); }
 
 /**
  * Applies the color given with the integer to a copy of the source bitmap,
@@ -85,13 +176,19 @@ public CachedBitmapColorizer(Context context, int drawableResource, Bitmap.Confi
  * */
 public Bitmap colorize(int color)
 {
-    Bitmap bitmap = cache.get(color);
-    if(bitmap == null || bitmap.isRecycled()) {
-        bitmap = super.colorize(color, backgroundColor);
-        cache.put(color, bitmap);
+    final int key = quantize(color);
+    final Stripe stripe = stripes[StripeIndex(key, stripes.length)];
+    synchronized (stripe) {
+        Bitmap bitmap = stripe.cache.get(key);
+        if(bitmap == null || bitmap.isRecycled()) {
+            missCount.incrementAndGet();
+            bitmap = stripe.colorizer.colorize(key, backgroundColor);
+            stripe.cache.put(key, bitmap);
+        } else {
+            hitCount.incrementAndGet();
+        }
+        return bitmap;
     }
-    
-    return bitmap;
 }
 
 /**
@@ -110,4 +207,13 @@ public Bitmap colorize(int a, int r, int g, int b)
     final int color = Color.argb(a, r, g, b);
     return colorize(color);
 }
+
+/**
+ * Spreads similar colors among stripes. stripeCount must be a power of 2.
+ * */
+private static int StripeIndex(int key, int stripeCount)
+{
+    final int h = key ^ (key >>> 16) ^ (key >>> 8);
+    return h & (stripeCount - 1);
+}
 }
@@ -0,0 +1,298 @@
+package org.gskbyte.bitmap;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.gskbyte.util.Logger;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * DiskBitmapCache class
+ *
+ * A bounded cache that stores bitmaps as files in a directory, evicting the
+ * least recently used ones when it's full. It's intended to keep bitmaps
+ * that are expensive to produce (for example, scaled down versions of big
+ * images), so that reading them again is cheap.
+ *
+ * Bitmaps with alpha are stored as PNG, opaque ones as JPEG.
+ *
+ * The access order is kept using the files' modification date, so it is
+ * preserved between executions. All methods are thread safe, but they
+ * access the file system, so they should not be called from the UI thread.
+ * */
+public class DiskBitmapCache
+{
+
+public static final int DEFAULT_JPEG_QUALITY = 90;
+
+private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+private final File directory;
+private final long maxSize;
+private int jpegQuality = DEFAULT_JPEG_QUALITY;
+
+/* file name -> file length, in access order. Guarded by this */
+private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+private boolean initialized;
+private long size;
+private int hitCount, missCount;
+
+/**
+ * Constructor.
+ * @param directory The directory where to store files. Should be used only by this cache.
+ * @param maxSize The maximum size of all stored files, in bytes
+ * */
+public DiskBitmapCache(File directory, long maxSize)
+{
+    if(maxSize <= 0) {
+        throw new IllegalArgumentException("maxSize must be > 0");
+    }
+    this.directory = directory;
+    this.maxSize = maxSize;
+}
+
+/**
+ * Creates a cache in a subfolder of the app's cache directory.
+ * @param context The context used to find the cache directory
+ * @param name The name for the subfolder
+ * @param maxSize The maximum size of all stored files, in bytes
+ * */
+public static DiskBitmapCache InCacheDirectory(Context context, String name, long maxSize)
+{ return new DiskBitmapCache(new File(context.getCacheDir(), name), maxSize); }
+
+public File getDirectory()
+{ return directory; }
+
+public long getMaxSize()
+{ return maxSize; }
+
+public int getJpegQuality()
+{ return jpegQuality; }
+
+/**
+ * Sets the quality used to store opaque bitmaps.
+ * @param quality A value in the range [0, 100]
+ * */
+public void setJpegQuality(int quality)
+{ this.jpegQuality = Math.max(0, Math.min(100, quality)); }
+
+/**
+ * Returns the size of all stored files, in bytes.
+ * */
+public synchronized long size()
+{
+    initialize();
+    return size;
+}
+
+public synchronized int hitCount()
+{ return hitCount; }
+
+public synchronized int missCount()
+{ return missCount; }
+
+/**
+ * Reads a bitmap from the cache.
+ * @param key The key used to store the bitmap
+ * @param opts The options used to decode the stored file, can be null
+ * @return The stored bitmap, or null if not found
+ * */
+public Bitmap get(String key, BitmapFactory.Options opts)
+{
+    final String fileName = FileNameForKey(key);
+    synchronized (this) {
+        initialize();
+        if(entries.get(fileName) == null) {
+            ++missCount;
+            return null;
+        }
+    }
+
+    final File file = new File(directory, fileName);
+    final Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), opts);
+    synchronized (this) {
+        if(bitmap != null) {
+            ++hitCount;
+            file.setLastModified(System.currentTimeMillis());
+        } else {
+            ++missCount;
+            removeEntry(fileName); // corrupt or deleted by someone else
+        }
+    }
+    return bitmap;
+}
+
+/**
+ * Stores a bitmap in the cache, replacing the previous one with the same key.
+ * @param key The key for the bitmap
+ * @param bitmap The bitmap to store
+ * @return true if the bitmap has been stored
+ * */
+public boolean put(String key, Bitmap bitmap)
+{
+    final String fileName = FileNameForKey(key);
+    synchronized (this) {
+        initialize();
+    }
+
+    final File tempFile = new File(directory, fileName + TEMP_FILE_SUFFIX);
+    final File file = new File(directory, fileName);
+    boolean written = false;
+    OutputStream os = null;
+    try {
+        os = new BufferedOutputStream(new FileOutputStream(tempFile));
+        if(bitmap.hasAlpha()) {
+            written = bitmap.compress(Bitmap.CompressFormat.PNG, 100, os);
+        } else {
+            written = bitmap.compress(Bitmap.CompressFormat.JPEG, jpegQuality, os);
+        }
+    } catch (IOException e) {
+        Logger.except(getClass(), e);
+    } finally {
+        if(os != null) {
+            try {
+                os.close();
+            } catch (IOException e) {
+                written = false;
+            }
+        }
+    }
+
+    synchronized (this) {
+        if(written && tempFile.renameTo(file)) {
+            removeEntry(fileName);
+            final long length = file.length();
+            entries.put(fileName, length);
+            size += length;
+            trimToSize(maxSize);
+            return true;
+        } else {
+            tempFile.delete();
+            return false;
+        }
+    }
+}
+
+/**
+ * Removes a bitmap from the cache, if present.
+ * @param key The key used to store the bitmap
+ * */
+public synchronized void remove(String key)
+{
+    initialize();
+    final String fileName = FileNameForKey(key);
+    if(removeEntry(fileName)) {
+        new File(directory, fileName).delete();
+    }
+}
+
+/**
+ * Removes all stored bitmaps.
+ * */
+public synchronized void clear()
+{
+    initialize();
+    trimToSize(0);
+}
+
+/**
+ * Deletes the least recently used files until the cache has the given size.
+ * @param maxSize The maximum size for the stored files, in bytes
+ * */
+public synchronized void trimToSize(long maxSize)
+{
+    initialize();
+    final Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+    while(size > maxSize && it.hasNext()) {
+        final Map.Entry<String, Long> eldest = it.next();
+        it.remove();
+        size -= eldest.getValue();
+        new File(directory, eldest.getKey()).delete();
+    }
+}
+
+// must be called holding the lock
+private boolean removeEntry(String fileName)
+{
+    final Long length = entries.remove(fileName);
+    if(length != null) {
+        size -= length;
+        return true;
+    }
+    return false;
+}
+
+/**
+ * Reads the existing files, oldest first. Must be called holding the lock.
+ * */
+private void initialize()
+{
+    if(initialized)
+        return;
+    initialized = true;
+
+    if(!directory.isDirectory() && !directory.mkdirs()) {
+        Logger.error(getClass(), "Can't create cache directory: " + directory);
+        return;
+    }
+
+    final File [] files = directory.listFiles();
+    if(files == null)
+        return;
+
+    Arrays.sort(files, new Comparator<File>() {
+        @Override
+        public int compare(File lhs, File rhs)
+        {
+            final long l = lhs.lastModified(), r = rhs.lastModified();
+            return l < r ? -1 : (l == r ? 0 : 1);
+        }
+    });
+
+    for(File f : files) {
+        if(f.getName().endsWith(TEMP_FILE_SUFFIX)) {
+            f.delete(); // interrupted write
+        } else if(f.isFile()) {
+            final long length = f.length();
+            entries.put(f.getName(), length);
+            size += length;
+        }
+    }
+    trimToSize(maxSize);
+}
+
+/**
+ * Returns a file name for the given key, made of its MD5 hash.
+ * */
+private static String FileNameForKey(String key)
+{
+    try {
+        final MessageDigest digest = MessageDigest.getInstance("MD5");
+        final byte [] hash = digest.digest(key.getBytes("UTF-8"));
+        final StringBuilder sb = new StringBuilder(hash.length * 2);
+        for(byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+        return Integer.toHexString(key.hashCode());
+    } catch (IOException e) {
+        return Integer.toHexString(key.hashCode());
+    }
+}
+
+}
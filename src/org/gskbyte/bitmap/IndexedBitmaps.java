@@ -11,10 +11,12 @@
 package org.gskbyte.bitmap;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 
+import org.gskbyte.bitmap.AbstractBitmapManager.Prefetch;
 import org.gskbyte.bitmap.AbstractBitmapManager.ScaleMode;
 
 import android.graphics.Bitmap;
@@ -41,6 +43,19 @@ protected final ArrayList<String> keyList = new ArrayList<String>();
 public IndexedBitmaps(AbstractBitmapManager manager, int locationForBitmaps)
 { super(manager, locationForBitmaps); }
 
+/**
+ * Also forgets the keys when the manager has been cleared, because they aren't referenced anymore.
+ * */
+@Override
+protected void validateReferenceIds()
+{
+    final int previousGeneration = referenceGeneration;
+    super.validateReferenceIds();
+    if(referenceGeneration != previousGeneration) {
+        keyList.clear();
+    }
+}
+
 /**
  * Adds a path to a bitmap, depending on the initial default location, and adds
  * its path to the end of the list.
@@ -61,25 +76,31 @@ public void addPath(String path, String ... aliases)
  * @return a list with all managed keys.
  * */
 public List<String> getKeyList()
-{ return Collections.unmodifiableList(keyList); }
+{
+    validateReferenceIds();
+    return Collections.unmodifiableList(keyList);
+}
 
 /**
  * 
  * */
 @Override
 public int size()
-{ return keyList.size(); }
+{
+    validateReferenceIds();
+    return keyList.size();
+}
 
 /**
  * Adds a list of paths to a bitmap, depending on the initial default location, and adds
  * their path to the end of the list.
  * @param paths A list of paths to bitmaps
  * */
-public void addPaths(List<String> path)
+@Override
+public void addPaths(Collection<String> paths)
 {
-    for(String s : path) {
-        addPath(s);
-    }
+    super.addPaths(paths);
+    keyList.addAll(paths);
 }
 
 /**
@@ -87,7 +108,10 @@ public void addPaths(List<String> path)
  * @param index The key's index.
  * */
 public String getKeyAt(int index)
-{ return keyList.get(index); }
+{
+    validateReferenceIds();
+    return keyList.get(index);
+}
 
 /**
  * Returns a Bitmap given the index in which its path it was added.
@@ -95,6 +119,7 @@ public String getKeyAt(int index)
  * */
 public Bitmap getAt(int index)
 {
+    validateReferenceIds();
     String path = keyList.get(index);
     return bitmapManager.get(path);
 }
@@ -105,10 +130,30 @@ public Bitmap getAt(int index)
  * */
 public Bitmap getAt(int index, ScaleMode scaleMode, int maxWidth, int maxHeight)
 {
+    validateReferenceIds();
     String path = keyList.get(index);
     return bitmapManager.get(path, scaleMode, maxWidth, maxHeight);
 }
 
+/**
+ * Loads the bitmaps in the given range of indices in background with low priority, so that
+ * they are already in memory when requested, for example the next page of a gallery.
+ * Indices out of bounds are ignored.
+ * @param fromIndex The first index to load, inclusive
+ * @param toIndex The last index to load, exclusive
+ * @param scaleMode
+ * @param maxWidth
+ * @param maxHeight
+ * @return A handle to cancel the prefetch
+ * */
+public Prefetch prefetch(int fromIndex, int toIndex, ScaleMode scaleMode, int maxWidth, int maxHeight)
+{
+    validateReferenceIds();
+    final int from = Math.min(Math.max(fromIndex, 0), keyList.size());
+    final int to = Math.max(from, Math.min(toIndex, keyList.size()));
+    return bitmapManager.prefetch(new ArrayList<String>(keyList.subList(from, to)), scaleMode, maxWidth, maxHeight);
+}
+
 /**
  * Returns true if the given Bitmap is present in memory
  * @param The bitmap's path index
@@ -116,6 +161,7 @@ public Bitmap getAt(int index, ScaleMode scaleMode, int maxWidth, int maxHeight)
  * */
 public boolean isBitmapLoadedAt(int index)
 {
+    validateReferenceIds();
     return bitmapManager.isBitmapLoaded( keyList.get(index) );
 }
 
@@ -125,7 +171,10 @@ public boolean isBitmapLoadedAt(int index)
  * @returns true if a file for the given path index exists
  * */
 public boolean existsBitmapFileAt(int index)
-{ return bitmapManager.existsBitmapFile( keyList.get(index) ); }
+{
+    validateReferenceIds();
+    return bitmapManager.existsBitmapFile( keyList.get(index) );
+}
 
 /**
  * Returns the path for the first existing path. The paths are iterated in insertion order.
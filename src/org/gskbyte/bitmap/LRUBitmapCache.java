@@ -9,19 +9,99 @@ import android.support.v4.util.LruCache;
  * An LRU Cache for bitmaps.
  * Contains helper methods to compute bitmap memory size, because they are active
  * only in newer Android versions
+ * 
+ * Besides its maximum size, the cache has a budget that can be changed at runtime, never
+ * above the maximum size. Bitmaps added with putWithinBudget() keep the cache within it.
  * */
 public class LRUBitmapCache<KeyClass>
 extends LruCache<KeyClass, Bitmap>
 {
 
 private final int maxSize;
+private volatile int budget;
+private volatile BitmapPool evictionPool;
 
 /**
- * Constructs an LRU cache with the given max size
+ * Constructs an LRU cache with the given max size, which is also its initial budget
  * @param maxSize The maximum cache size, in bytes
  * */
 public LRUBitmapCache(int maxSize)
-{ super(maxSize); this.maxSize = maxSize; }
+{ super(maxSize); this.maxSize = maxSize; this.budget = maxSize; }
+
+/**
+ * Returns the memory that the cache can currently use, in bytes.
+ * */
+public int getBudget()
+{ return budget; }
+
+/**
+ * Changes the memory that the cache can use, evicting bitmaps if it's over the new budget.
+ * @param budget The new budget in bytes, limited to [0, getMaxSize()]
+ * */
+public void setBudget(int budget)
+{
+    final int newBudget = Math.max(0, Math.min(budget, maxSize));
+    this.budget = newBudget;
+    if(size() > newBudget) {
+        trimToSize(newBudget);
+    }
+}
+
+/**
+ * Adds a bitmap to the cache, evicting the least recently used ones if it's over the budget.
+ * @param key The key for the bitmap
+ * @param bitmap The bitmap to add
+ * @return The bitmap previously stored with the same key, or null
+ * */
+public Bitmap putWithinBudget(KeyClass key, Bitmap bitmap)
+{
+    final Bitmap previous = put(key, bitmap);
+    final int currentBudget = budget;
+    if(size() > currentBudget) {
+        trimToSize(currentBudget);
+    }
+    return previous;
+}
+
+public BitmapPool getEvictionPool()
+{ return evictionPool; }
+
+/**
+ * Sets a pool to which evicted bitmaps are given, so that their memory can be reused.
+ * Bitmaps removed explicitly with remove() are not pooled.
+ * @param pool The pool for evicted bitmaps, or null to just drop them.
+ * */
+public void setEvictionPool(BitmapPool pool)
+{ this.evictionPool = pool; }
+
+/**
+ * Gives evicted bitmaps to the eviction pool, if any.
+ * */
+@Override
+protected void entryRemoved(boolean evicted, KeyClass key, Bitmap oldValue, Bitmap newValue)
+{
+    if(evicted) {
+        final BitmapPool pool = evictionPool;
+        final boolean pooled = pool != null && canPool(key, oldValue) && pool.put(oldValue);
+        bitmapEvicted(key, oldValue, pooled);
+    }
+}
+
+/**
+ * Returns true if an evicted bitmap can be given to the eviction pool, which will reuse its memory.
+ * Returns true by default.
+ * */
+protected boolean canPool(KeyClass key, Bitmap bitmap)
+{ return true; }
+
+/**
+ * Called when a bitmap is evicted because the cache is over its size. Does nothing by default.
+ * @param key The bitmap's key
+ * @param bitmap The evicted bitmap
+ * @param pooled true if the bitmap has been given to the eviction pool, so it must not be used anymore
+ * */
+protected void bitmapEvicted(KeyClass key, Bitmap bitmap, boolean pooled)
+{ }
 
 /**
  * Returns the maximum size of the whole cache, in bytes.
@@ -56,9 +136,13 @@ public int sizeOf(KeyClass key)
 
 /**
  * Returns number of bytes per pixel given a bitmap config.
+ * @param config The config, or null for bitmaps whose config is not public, which are assumed to use 4 bytes.
  * */
 public final static int BytesPerPixel(Bitmap.Config config)
 {
+    if(config == null)
+        return 4;
+    
     switch(config) {
     case ALPHA_8:
         return 1;
@@ -73,14 +157,17 @@ public final static int BytesPerPixel(Bitmap.Config config)
 }
 
 /**
- * Returns the memory required for a bitmap.
+ * Returns the memory required for a bitmap, which depends on the config it was decoded with.
+ * Bitmaps decoded reusing a bigger one keep all its memory, so their allocated size is returned.
  * @param bitmap The bitmap for which to calculate its size.
  * @return Its size, in bytes.
  * */
 @SuppressLint("NewApi")
 public static int BitmapMemorySize(Bitmap bitmap)
 {
-    if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
+    if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+        return bitmap.getAllocationByteCount();
+    } else if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
         return bitmap.getByteCount();
     } else {
         return bitmap.getWidth() * bitmap.getHeight() * BytesPerPixel(bitmap.getConfig());
@@ -1,10 +1,22 @@
 package org.gskbyte.bitmap;
 
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.gskbyte.util.Logger;
 
+import android.annotation.SuppressLint;
 import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Point;
+import android.os.Build;
+import android.os.SystemClock;
 
 /**
  * LRUBitmapManager class
@@ -13,6 +25,18 @@ import android.graphics.Bitmap;
  * and refer to them. This allows the programmer not to abuse of memory usage, while not
  * keeping too much attention on it.
  * 
+ * Every reference can have several bitmaps in the cache, one per requested scale mode and size.
+ * Requests for a smaller size are served scaling down a bigger bitmap if it's already loaded.
+ * 
+ * Evicted bitmaps which are still used somewhere else (for example, in a visible view) are
+ * recovered without decoding them again, see setReleasedBitmapsRecoveryEnabled().
+ * 
+ * Optionally, scaled bitmaps can also be kept in a DiskBitmapCache, so that loading them
+ * again after being evicted from memory doesn't require decoding and scaling the original files.
+ * 
+ * The manager lowers the cache budget when trimMemory() is called, or when the system notifies
+ * memory pressure if setTrimMemoryEnabled() has been called (Android 4.0+). The budget grows back
+ * to the maximum memory rate step by step while the heap has free space.
  * */
 public class LRUBitmapManager
 extends AbstractBitmapManager
@@ -20,7 +44,28 @@ extends AbstractBitmapManager
 
 public static final float DEFAULT_MEMORY_RATE = 0.33f;
 
+/** Rate of the cache that a single prefetch can fill */
+public static final float PREFETCH_MEMORY_RATE = 0.5f;
+
+/** The budget never goes below this rate of the maximum size, unless trimMemory() is called again */
+private static final float MIN_BUDGET_RATE = 0.125f;
+/** Number of steps in which the budget recovers its maximum size */
+private static final int BUDGET_RECOVERY_STEPS = 8;
+/** Time without memory pressure before the budget starts to grow */
+private static final long BUDGET_RECOVERY_DELAY_MILLIS = 10 * 1000;
+
 private final LRUBitmapCache<String> bitmapCache;
+private volatile DiskBitmapCache diskCache;
+
+/* Owners of the variants in the cache, to keep count of loaded references without probing the cache */
+private final ConcurrentHashMap<String, LRUBitmapRef> variantOwners = new ConcurrentHashMap<String, LRUBitmapRef>();
+/* Owners of the tiles in the cache, to forget their keys when they are evicted */
+private final ConcurrentHashMap<String, LRUBitmapRef> tileOwners = new ConcurrentHashMap<String, LRUBitmapRef>();
+private final AtomicInteger loadedRefCount = new AtomicInteger();
+/* Bitmaps waiting to be stored in the disk cache, which can't be pooled until then */
+private final Set<Bitmap> pendingDiskWrites = Collections.newSetFromMap(new ConcurrentHashMap<Bitmap, Boolean>());
+private volatile long lastBudgetChangeMillis;
+private Object trimMemoryCallbacks; // only on Android 4.0+, where ComponentCallbacks2 exists
 
 /**
  * Constructor. Uses a memory rate of 25%, which is a good value when this
@@ -42,14 +87,14 @@ public LRUBitmapManager(Context context, float memoryRate)
 {
     super(context);
     final int maxSize = MaxMemorySizeForRate(context, memoryRate);
-    this.bitmapCache = new LRUBitmapCache<String>(maxSize);
+    this.bitmapCache = new ManagerCache(maxSize);
 }
 
 public LRUBitmapManager(Context context, int numLoadThreads, float memoryRate)
 {
     super(context, numLoadThreads);
     final int maxSize = MaxMemorySizeForRate(context, memoryRate);
-    this.bitmapCache = new LRUBitmapCache<String>(maxSize);
+    this.bitmapCache = new ManagerCache(maxSize);
 }
 
 public static final int MaxMemorySizeForRate(Context context, float memoryRate)
@@ -70,24 +115,66 @@ protected BitmapRef initializeReference(int location, String path)
 @Override
 public void clear()
 {
-    super.clear();
+    // evicted bitmaps are released to the weak tier, which super.clear() empties afterwards
     bitmapCache.evictAll();
+    super.clear();
 }
 
 /**
- * This could be optimized having a counter, but this method is not very likely
- * to be used, we keep it simple.
+ * Counts references with at least one bitmap loaded. Tiles are not taken into account.
  * */
 @Override
 public int countLoadedBitmaps()
+{ return loadedRefCount.get(); }
+
+/**
+ * Returns the memory used by all cached bitmaps and tiles.
+ * */
+@Override
+public long getResidentBytes()
+{ return bitmapCache.size(); }
+
+@Override
+protected long getEvictionCount()
+{ return bitmapCache.evictionCount(); }
+
+/**
+ * Cache that keeps track of the variants of every reference when they are removed,
+ * and releases evicted bitmaps so that they can be recovered.
+ * */
+private final class ManagerCache
+extends LRUBitmapCache<String>
 {
-    int count = 0;
-    for(String s : references.keySet()) {
-        if(bitmapCache.get(s) != null)
-            ++count;
+    public ManagerCache(int maxSize)
+    { super(maxSize); }
+    
+    @Override
+    protected boolean canPool(String key, Bitmap bitmap)
+    { return !pendingDiskWrites.contains(bitmap); }
+    
+    @Override
+    protected void bitmapEvicted(String key, Bitmap bitmap, boolean pooled)
+    {
+        if(!pooled) {
+            releaseBitmap(key, bitmap);
+        }
     }
     
-    return count;
+    @Override
+    protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue)
+    {
+        super.entryRemoved(evicted, key, oldValue, newValue);
+        if(newValue == null) {
+            final LRUBitmapRef owner = variantOwners.remove(key);
+            if(owner != null) {
+                owner.variantRemoved(key);
+            }
+            final LRUBitmapRef tileOwner = tileOwners.remove(key);
+            if(tileOwner != null) {
+                tileOwner.tileRemoved(key);
+            }
+        }
+    }
 }
 
 @Override
@@ -96,6 +183,200 @@ public void releaseAllBitmaps()
     bitmapCache.evictAll();
 }
 
+public DiskBitmapCache getDiskCache()
+{ return diskCache; }
+
+/**
+ * Stores a bitmap in the disk cache in background, after the loads with higher priority,
+ * so that encoding it doesn't delay the thread that requested it.
+ * */
+private void storeInDiskCache(final DiskBitmapCache disk, final String diskKey, final Bitmap bitmap)
+{
+    pendingDiskWrites.add(bitmap);
+    getLowPriorityExecutor().execute(new Runnable() {
+        @Override
+        public void run()
+        {
+            try {
+                if(!bitmap.isRecycled()) {
+                    disk.put(diskKey, bitmap);
+                }
+            } finally {
+                pendingDiskWrites.remove(bitmap);
+            }
+        }
+    });
+}
+
+/**
+ * Sets a disk cache to store scaled bitmaps. Bitmaps loaded with ScaleMode.None
+ * are not stored, because reading them from the cache would be as expensive as
+ * reading the original file.
+ * @param diskCache The disk cache to use, or null to disable it.
+ * */
+public void setDiskCache(DiskBitmapCache diskCache)
+{ this.diskCache = diskCache; }
+
+/**
+ * Enables or disables reuse of the memory of evicted bitmaps to decode new ones.
+ * Only enable it if evicted bitmaps are not kept anywhere else (for example, in a
+ * visible ImageView), because their contents will be overwritten.
+ * Check the pool's hitCount() and missCount() to know how many allocations are saved.
+ * @param pool The pool for evicted bitmaps, or null to disable reuse.
+ * */
+@Override
+public void setBitmapPool(BitmapPool pool)
+{
+    super.setBitmapPool(pool);
+    bitmapCache.setEvictionPool(pool);
+}
+
+/**
+ * Returns the memory that bitmaps can currently use, in bytes. It's lower than the maximum
+ * after memory pressure.
+ * */
+public int getMemoryBudget()
+{ return bitmapCache.getBudget(); }
+
+/**
+ * Returns the maximum memory that bitmaps can use, in bytes, given by the memory rate.
+ * */
+public int getMaxMemorySize()
+{ return bitmapCache.getMaxSize(); }
+
+/**
+ * Changes the memory that bitmaps can use, evicting the least recently used ones if needed.
+ * The budget can't grow over the maximum memory size. It will grow back to it if the heap has free space.
+ * @param bytes The new budget, in bytes
+ * */
+public void setMemoryBudget(int bytes)
+{
+    lastBudgetChangeMillis = SystemClock.uptimeMillis();
+    bitmapCache.setBudget(bytes);
+}
+
+/**
+ * Enables or disables trimming memory automatically when the system notifies memory pressure.
+ * Disabled by default. Has no effect before Android 4.0, where trimMemory() must be called by hand.
+ * The manager is registered in the application context, so it must be disabled again to let
+ * the manager be garbage collected.
+ * */
+@SuppressLint("NewApi")
+public synchronized void setTrimMemoryEnabled(boolean enabled)
+{
+    if(Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH || enabled == (trimMemoryCallbacks != null))
+        return;
+    
+    final Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+    if(enabled) {
+        final TrimMemoryCallbacks callbacks = new TrimMemoryCallbacks();
+        appContext.registerComponentCallbacks(callbacks);
+        trimMemoryCallbacks = callbacks;
+    } else {
+        appContext.unregisterComponentCallbacks((TrimMemoryCallbacks) trimMemoryCallbacks);
+        trimMemoryCallbacks = null;
+    }
+}
+
+/**
+ * Releases memory according to a level given by ComponentCallbacks2.onTrimMemory(). The more
+ * critical the level is, the more bitmaps are evicted, and the lower the budget becomes.
+ * Also trims the bitmap pool, if any.
+ * @param level One of ComponentCallbacks2.TRIM_MEMORY_* constants
+ * */
+public void trimMemory(int level)
+{
+    final float keepRate;
+    if(level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+        keepRate = 0;
+    } else if(level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+        keepRate = 0.25f;
+    } else if(level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) { // or background
+        keepRate = 0.5f;
+    } else if(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+        keepRate = 0.25f;
+    } else if(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+        keepRate = 0.5f;
+    } else if(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+        keepRate = 0.75f;
+    } else {
+        return;
+    }
+    
+    final int initialSize = bitmapCache.size();
+    final int maxSize = bitmapCache.getMaxSize();
+    final int keepSize = (int)(keepRate * maxSize);
+    bitmapCache.trimToSize(keepSize);
+    setMemoryBudget( Math.min(bitmapCache.getBudget(), Math.max(keepSize, (int)(MIN_BUDGET_RATE * maxSize))) );
+    
+    final BitmapPool pool = getBitmapPool();
+    if(pool != null) {
+        pool.trimToSize((int)(keepRate * pool.getMaxSize()));
+    }
+    
+    Logger.info( getClass(), String.format("Trim memory level %d: %.2f MB before, %.2f MB after, budget %.2f MB",
+            level,
+            (initialSize/(1024*1024f)),
+            (bitmapCache.size()/(1024*1024f)),
+            (bitmapCache.getBudget()/(1024*1024f))
+            ) );
+}
+
+/**
+ * Releases bitmaps as if memory was critically low, because a decode has failed.
+ * */
+@Override
+protected void onOutOfMemory()
+{
+    super.onOutOfMemory();
+    trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL);
+}
+
+/**
+ * Grows the budget one step if it's below the maximum, there hasn't been memory pressure
+ * for a while and the heap has room for it.
+ * */
+private void recoverMemoryBudget()
+{
+    final int budget = bitmapCache.getBudget();
+    final int maxSize = bitmapCache.getMaxSize();
+    if(budget >= maxSize || SystemClock.uptimeMillis() - lastBudgetChangeMillis < BUDGET_RECOVERY_DELAY_MILLIS)
+        return;
+    
+    final int step = Math.max(1, maxSize / BUDGET_RECOVERY_STEPS);
+    final Runtime runtime = Runtime.getRuntime();
+    final long freeHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    if(freeHeap > 2L * step) {
+        setMemoryBudget(budget + step);
+    }
+}
+
+/**
+ * Forwards the system's memory notifications to the manager. Must only be instantiated on Android 4.0+.
+ * */
+private final class TrimMemoryCallbacks
+implements ComponentCallbacks2
+{
+    @Override
+    public void onTrimMemory(int level)
+    { trimMemory(level); }
+    
+    @Override
+    public void onLowMemory()
+    { trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE); }
+    
+    @Override
+    public void onConfigurationChanged(Configuration newConfig)
+    { }
+}
+
+/**
+ * Prefetches can fill only half of the current budget, so that they don't evict the bitmaps being used.
+ * */
+@Override
+protected long getPrefetchBudget()
+{ return (long)(bitmapCache.getBudget() * PREFETCH_MEMORY_RATE); }
+
 /**
  * Frees memory from old bitmaps, given the rate of memory that we want to free up (0 = nothing, 1 = all bitmaps)
  * @param freeUpRate The amount of memory to free up
@@ -125,42 +406,186 @@ public void releaseOldBitmaps(float freeUpRate)
 }
 
 /**
- * Specialization of a BitmapReference. Refers to Bitmaps from the Manager's LRUCache.
+ * Specialization of a BitmapReference. Refers to Bitmaps from the Manager's LRUCache,
+ * using a different key for every scale mode and size.
  * */
 final class LRUBitmapRef
 extends AbstractBitmapManager.BitmapRef
 {
 
+/* Keys of the variants in the cache, removed when they are evicted */
+private final Set<String> variantKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+/* Keys of the tiles in the cache, kept apart because they are not whole bitmaps. Removed when they are evicted */
+private final Set<String> tileKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+/* Number of variants in the cache. Can be transiently negative if a variant is evicted right after being put */
+private final AtomicInteger cachedVariants = new AtomicInteger();
+
 public LRUBitmapRef(int location, String path)
 {
     super(location, path);
 }
 
+@Override
+protected String keyFor(ScaleMode scaleMode, int maxWidth, int maxHeight)
+{
+    if(scaleMode == ScaleMode.None) {
+        return path;
+    } else {
+        return path + "#" + scaleMode + ":" + maxWidth + "x" + maxHeight;
+    }
+}
+
+@Override
+public Bitmap getLoadedBitmap(ScaleMode scaleMode, int maxWidth, int maxHeight)
+{
+    return bitmapCache.get( keyFor(scaleMode, maxWidth, maxHeight) );
+}
+
+@Override
+protected void storeBitmap(Bitmap bitmap, ScaleMode scaleMode, int maxWidth, int maxHeight)
+{
+    final String key = keyFor(scaleMode, maxWidth, maxHeight);
+    variantOwners.put(key, this);
+    if(bitmapCache.putWithinBudget(key, bitmap) == null && cachedVariants.incrementAndGet() == 1) {
+        loadedRefCount.incrementAndGet();
+    }
+    // after putting it, so that an old copy evicted meanwhile doesn't remove the key
+    variantKeys.add(key);
+    recoverMemoryBudget();
+}
+
+/**
+ * Called by the cache when a variant is evicted or removed.
+ * */
+void variantRemoved(String key)
+{
+    variantKeys.remove(key);
+    if(cachedVariants.decrementAndGet() == 0) {
+        loadedRefCount.decrementAndGet();
+    }
+}
+
+/**
+ * Called by the cache when a tile is evicted or removed.
+ * */
+void tileRemoved(String key)
+{
+    tileKeys.remove(key);
+}
+
 @Override
 public boolean isLoaded()
 {
-    return bitmapCache.get(path) != null;
+    return cachedVariants.get() > 0;
 }
 
+/**
+ * Returns a scaled down copy of the smallest loaded variant which is at least as big
+ * as the requested size, or null if there is none.
+ * */
+private Bitmap scaleLoadedVariant(ScaleMode scaleMode, int maxWidth, int maxHeight)
+{
+    if(variantKeys.isEmpty())
+        return null;
+    
+    final Point target = getScaledSize(scaleMode, maxWidth, maxHeight);
+    if(target.x <= 0 || target.y <= 0)
+        return null;
+    
+    Bitmap best = null;
+    for(String key : variantKeys) {
+        final Bitmap candidate = bitmapCache.get(key);
+        if(candidate != null && !candidate.isRecycled()
+                && candidate.getWidth() >= target.x && candidate.getHeight() >= target.y
+                && (best == null || candidate.getWidth() < best.getWidth())) {
+            best = candidate;
+        }
+    }
+    
+    if(best != null) {
+        return Bitmap.createScaledBitmap(best, target.x, target.y, true);
+    } else {
+        return null;
+    }
+}
+
+/**
+ * Recovers the bitmap if it was evicted but is still alive. If not, scales down a bigger
+ * loaded variant if possible, or looks for the bitmap in the disk cache before decoding
+ * the original file.
+ * Newly scaled bitmaps are stored in the disk cache in background.
+ * */
+@SuppressLint("NewApi")
 @Override
-public Bitmap getBitmap(ScaleMode scaleMode, int maxWidth, int maxHeight)
+protected Bitmap loadMissingBitmap(ScaleMode scaleMode, int maxWidth, int maxHeight)
 {
-    Bitmap bitmap = bitmapCache.get(path);
+    final Bitmap recovered = recoverBitmap(keyFor(scaleMode, maxWidth, maxHeight));
+    if(recovered != null)
+        return recovered;
+    
+    if(scaleMode != ScaleMode.None) {
+        final Bitmap scaled = scaleLoadedVariant(scaleMode, maxWidth, maxHeight);
+        if(scaled != null)
+            return scaled;
+    }
+    
+    final DiskBitmapCache disk = diskCache;
+    if(disk == null || scaleMode == ScaleMode.None) {
+        return loadBitmap(scaleMode, maxWidth, maxHeight);
+    }
+    
+    // the modification date invalidates stored copies of updated files; without it, a stored
+    // copy could be stale, so the disk cache is skipped
+    final long modified = lastModified();
+    if(modified <= 0) {
+        return loadBitmap(scaleMode, maxWidth, maxHeight);
+    }
+    
+    // copies are decoded with the reference's config, and aren't shared with other configs
+    final Bitmap.Config config = getDecodeConfig();
+    final String diskKey = location + ":" + keyFor(scaleMode, maxWidth, maxHeight) + ":" + modified + ":" + config;
+    final BitmapFactory.Options opts = new BitmapFactory.Options();
+    opts.inPreferredConfig = config;
+    if(getBitmapPool() != null && BitmapPool.IsReuseSupported()) {
+        opts.inMutable = true;
+    }
+    
+    Bitmap bitmap = disk.get(diskKey, opts);
     if(bitmap == null) {
         bitmap = loadBitmap(scaleMode, maxWidth, maxHeight);
-        if(bitmap != null) {
-            bitmapCache.put(path, bitmap);
-        } else {
-            Logger.error(getClass(), "Bitmap not found: " + path);
+        if(bitmap != null && bitmap.getWidth() < size.x) {
+            storeInDiskCache(disk, diskKey, bitmap);
         }
     }
     return bitmap;
 }
 
+@Override
+protected Bitmap getLoadedTile(String tileKey)
+{
+    return bitmapCache.get(tileKey);
+}
+
+@Override
+protected void storeTile(String tileKey, Bitmap tile)
+{
+    tileOwners.put(tileKey, this);
+    bitmapCache.putWithinBudget(tileKey, tile);
+    // after putting it, so that an old copy evicted meanwhile doesn't remove the key
+    tileKeys.add(tileKey);
+}
+
 @Override
 public void freeResources()
 {
-    bitmapCache.remove(path);
+    for(String key : variantKeys) {
+        bitmapCache.remove(key);
+    }
+    variantKeys.clear();
+    for(String key : tileKeys) {
+        bitmapCache.remove(key);
+    }
+    tileKeys.clear();
 }
 
 }
@@ -10,9 +10,10 @@
  ******************************************************************************/
 package org.gskbyte.bitmap;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.BitSet;
+import java.util.Collection;
 
+import org.gskbyte.bitmap.AbstractBitmapManager.Prefetch;
 import org.gskbyte.bitmap.AbstractBitmapManager.ScaleMode;
 
 import android.graphics.Bitmap;
@@ -28,7 +29,10 @@ import android.graphics.Bitmap;
 public class ReferencedBitmaps
 {
 
-protected final Set<String> keys = new HashSet<String>();
+/* Ids of the manager's references included in this subset. Paths and their aliases share the id.
+ * Only valid while the manager's reference generation doesn't change, see validateReferenceIds() */
+protected final BitSet referenceIds = new BitSet();
+protected int referenceGeneration;
 
 protected int uniqueCounter = 0;
 
@@ -44,6 +48,21 @@ public ReferencedBitmaps(AbstractBitmapManager manager, int locationForBitmaps)
 {
     this.bitmapManager = manager;
     this.locationForBitmaps = locationForBitmaps;
+    this.referenceGeneration = manager.getReferenceGeneration();
+}
+
+/**
+ * Discards the reference ids if the manager has been cleared, because it reuses them.
+ * Must be called before using referenceIds.
+ * */
+protected void validateReferenceIds()
+{
+    final int generation = bitmapManager.getReferenceGeneration();
+    if(generation != referenceGeneration) {
+        referenceIds.clear();
+        uniqueCounter = 0;
+        referenceGeneration = generation;
+    }
 }
 
 public final AbstractBitmapManager getBitmapManager()
@@ -60,11 +79,30 @@ public final int getLocationForBitmaps()
 public void addPath(String path, String ... aliases)
 {
     bitmapManager.addPath(locationForBitmaps, path, aliases);
-    if(!keys.contains(path))
+    includeReference(path);
+}
+
+/**
+ * Adds many paths to bitmaps, depending on the initial default location. Much faster than
+ * calling addPath() for every path when adding thousands of them.
+ * @param paths The paths to the bitmaps.
+ * */
+public void addPaths(Collection<String> paths)
+{
+    bitmapManager.addPaths(locationForBitmaps, paths);
+    for(String path : paths) {
+        includeReference(path);
+    }
+}
+
+private void includeReference(String path)
+{
+    validateReferenceIds();
+    final int id = bitmapManager.getReferenceId(path);
+    if(id >= 0 && !referenceIds.get(id)) {
+        referenceIds.set(id);
         ++uniqueCounter;
-    keys.add(path);
-    for(String alias : aliases)
-        keys.add(alias);
+    }
 }
 
 /**
@@ -75,10 +113,8 @@ public void addPath(String path, String ... aliases)
  * */
 public boolean addAliases(String path, String ... aliases)
 {
-    if(keys.contains(path)) {
+    if(containsKey(path)) {
         bitmapManager.addAliases(path, aliases);
-        for(String alias : aliases)
-            keys.add(alias);
         return true;
     } else {
         return false;
@@ -99,7 +135,11 @@ public boolean containsPath(String path)
  * @return true if there is a bitmap reference for the given key
  * */
 public boolean containsKey(String key)
-{ return keys.contains(key); }
+{
+    validateReferenceIds();
+    final int id = bitmapManager.getReferenceId(key);
+    return id >= 0 && referenceIds.get(id);
+}
 
 /**
  * Returns true if the given Bitmap is present in memory. Asks the underlying manager.
@@ -118,13 +158,15 @@ public boolean existsBitmapFile(String key)
 { return bitmapManager.existsBitmapFile(key); }
 
 /**
- * Checks the presence of all bitmaps in the file system 
+ * Checks the presence of all bitmaps in the file system. If the manager has an existence index,
+ * it doesn't access the file system once the bitmaps' directories have been listed.
  * @returns true if all contained Bitmaps are present in the file system. Asks the underlying manager.
  * */
 public boolean existAllBitmaps()
 {
-    for(String key : keys) {
-        if(!bitmapManager.existsBitmapFile(key))
+    validateReferenceIds();
+    for(int id = referenceIds.nextSetBit(0); id >= 0; id = referenceIds.nextSetBit(id+1)) {
+        if(!bitmapManager.existsBitmapFileForReferenceId(id))
             return false;
     }
     
@@ -135,17 +177,22 @@ public boolean existAllBitmaps()
  * Returns the number of references.
  * */
 public int size()
-{ return uniqueCounter; }
+{
+    validateReferenceIds();
+    return uniqueCounter;
+}
 
 /**
- * Returns the number of existing bitmap files from the referenced by this.
+ * Returns the number of existing bitmap files from the referenced by this. Uses the manager's
+ * existence index, if set.
  * @return the number of existing referenced bitmap files
  * */
 public int countExistingBitmapFiles()
 {
     int counter = 0;
-    for(String k : keys) {
-        if(bitmapManager.existsBitmapFile(k)) {
+    validateReferenceIds();
+    for(int id = referenceIds.nextSetBit(0); id >= 0; id = referenceIds.nextSetBit(id+1)) {
+        if(bitmapManager.existsBitmapFileForReferenceId(id)) {
             ++counter;
         }
     }
@@ -170,6 +217,27 @@ public Bitmap get(String key)
 public Bitmap get(String key, ScaleMode scaleMode, int maxWidth, int maxHeight)
 { return bitmapManager.get(key, scaleMode, maxWidth, maxHeight); }
 
+/**
+ * Loads the given bitmaps in background with low priority, so that they are already in memory
+ * when requested. Asks the underlying manager.
+ * @param keys The keys for the bitmaps, in the order they should be loaded
+ * @return A handle to cancel the prefetch
+ * */
+public Prefetch prefetch(Collection<String> keys)
+{ return bitmapManager.prefetch(keys); }
+
+/**
+ * Loads the given bitmaps in background with low priority and the given scale, so that they
+ * are already in memory when requested. Asks the underlying manager.
+ * @param keys The keys for the bitmaps, in the order they should be loaded
+ * @param scaleMode
+ * @param maxWidth
+ * @param maxHeight
+ * @return A handle to cancel the prefetch
+ * */
+public Prefetch prefetch(Collection<String> keys, ScaleMode scaleMode, int maxWidth, int maxHeight)
+{ return bitmapManager.prefetch(keys, scaleMode, maxWidth, maxHeight); }
+
 /**
  * @Deprecated Use getFirstExistingKey()
  * Returns the path for the first existing path.
@@ -187,10 +255,11 @@ protected String getFirstExistingFilePath()
  * */
 protected String getFirstExistingKey()
 {
-    for(String key : keys) {
-        boolean exists = existsBitmapFile(key);
+    validateReferenceIds();
+    for(int id = referenceIds.nextSetBit(0); id >= 0; id = referenceIds.nextSetBit(id+1)) {
+        boolean exists = bitmapManager.existsBitmapFileForReferenceId(id);
         if(exists)
-            return key;
+            return bitmapManager.getPathForReferenceId(id);
     }
     
     return null;
@@ -210,7 +279,8 @@ public void clear(boolean releaseBitmaps)
 {
     if(releaseBitmaps)
         freeResources();
-    keys.clear();
+    referenceIds.clear();
+    uniqueCounter = 0;
 }
 
 /**
@@ -218,8 +288,11 @@ public void clear(boolean releaseBitmaps)
  * */
 public void freeResources()
 {
-    for(String s : keys) {
-        bitmapManager.freeBitmap(s);
+    validateReferenceIds();
+    for(int id = referenceIds.nextSetBit(0); id >= 0; id = referenceIds.nextSetBit(id+1)) {
+        final String path = bitmapManager.getPathForReferenceId(id);
+        if(path != null)
+            bitmapManager.freeBitmap(path);
     }
 }
 
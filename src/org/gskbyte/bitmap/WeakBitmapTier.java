@@ -0,0 +1,110 @@
+package org.gskbyte.bitmap;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.graphics.Bitmap;
+
+/**
+ * WeakBitmapTier class
+ *
+ * Keeps weak references to bitmaps released by a manager, so that they can be recovered
+ * without decoding them again while someone else (for example, a visible view) still
+ * uses them. Bitmaps not used anywhere else are garbage collected as usual.
+ *
+ * All methods are thread safe.
+ * */
+public class WeakBitmapTier
+{
+
+private final ConcurrentHashMap<String, KeyedReference> references = new ConcurrentHashMap<String, KeyedReference>();
+private final ReferenceQueue<Bitmap> collectedQueue = new ReferenceQueue<Bitmap>();
+private final AtomicLong recoveredCount = new AtomicLong();
+
+private static final class KeyedReference
+extends WeakReference<Bitmap>
+{
+    final String key;
+
+    KeyedReference(String key, Bitmap bitmap, ReferenceQueue<Bitmap> queue)
+    {
+        super(bitmap, queue);
+        this.key = key;
+    }
+}
+
+/**
+ * Keeps a weak reference to a released bitmap.
+ * @param key The key with which the bitmap will be recovered
+ * @param bitmap The released bitmap
+ * */
+public void put(String key, Bitmap bitmap)
+{
+    purgeCollected();
+    if(bitmap != null && !bitmap.isRecycled()) {
+        references.put(key, new KeyedReference(key, bitmap, collectedQueue));
+    }
+}
+
+/**
+ * Returns a released bitmap if it's still alive, and stops referencing it.
+ * @param key The key used to put the bitmap
+ * @return The bitmap, or null if it has been collected or recycled
+ * */
+public Bitmap take(String key)
+{
+    final KeyedReference ref = references.remove(key);
+    if(ref != null) {
+        final Bitmap bitmap = ref.get();
+        if(bitmap != null && !bitmap.isRecycled()) {
+            recoveredCount.incrementAndGet();
+            return bitmap;
+        }
+    }
+    return null;
+}
+
+/**
+ * Stops referencing the bitmap with the given key, if any.
+ * */
+public void remove(String key)
+{ references.remove(key); }
+
+/**
+ * Stops referencing all bitmaps.
+ * */
+public void clear()
+{
+    references.clear();
+    purgeCollected();
+}
+
+/**
+ * Returns the number of references kept, including the ones whose bitmaps have been collected
+ * but haven't been purged yet.
+ * */
+public int size()
+{ return references.size(); }
+
+/**
+ * Returns the number of bitmaps recovered with take().
+ * */
+public long recoveredCount()
+{ return recoveredCount.get(); }
+
+/**
+ * Removes the entries whose bitmaps have been garbage collected.
+ * */
+private void purgeCollected()
+{
+    Reference<? extends Bitmap> collected;
+    while((collected = collectedQueue.poll()) != null) {
+        final KeyedReference ref = (KeyedReference) collected;
+        references.remove(ref.key, ref);
+    }
+}
+
+}
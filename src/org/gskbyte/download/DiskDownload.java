@@ -4,30 +4,93 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.http.util.ByteArrayBuffer;
 import org.gskbyte.util.IOUtils;
+import org.gskbyte.util.Logger;
 
 import android.content.Context;
 
+/**
+ * Download that saves the remote file to disk. The data is written to a temporary file
+ * next to the destination, which is renamed when the download finishes.
+ * 
+ * Big files can be downloaded in segments: the file is split in byte ranges, which are
+ * fetched concurrently using one connection each. See setNumSegments().
+ * 
+ * The data isn't kept in memory: each connection is read into a small direct buffer,
+ * which is written to the file's channel.
+ * 
+ * Downloads with a single connection can be resumed: the temporary file is kept if
+ * the download fails, and synced to disk every SYNC_INTERVAL_BYTES. The next time
+ * the download starts, the synced part is requested no more. See DownloadJournal.
+ * */
 public class DiskDownload
 extends Download
 {
+
+/** Files are not split in segments smaller than this */
+public static final int MIN_SEGMENT_SIZE = 1024 * 1024;
+/** Default number of segments: 1, which downloads with a single connection */
+public static final int DEFAULT_NUM_SEGMENTS = 1;
+
+/** Bytes written between syncs of the temporary file, which bound the data lost if the process dies */
+public static final int SYNC_INTERVAL_BYTES = 4 * 1024 * 1024;
+
+/** Time between progress notifications while waiting for segments, in milliseconds */
+private static final int SEGMENT_PROGRESS_INTERVAL_MILLIS = 250;
+
+private static final ExecutorService SegmentExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+    private final AtomicInteger threadCounter = new AtomicInteger();
+    
+    @Override
+    public Thread newThread(Runnable r)
+    {
+        final Thread t = new Thread(r, "DownloadSegment #" + threadCounter.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+});
+
 private FileOutputStream tempOutputStream;
-private String tempFilePath;
+private volatile String tempFilePath;
+/** Bytes of the temporary file that are synced to disk, and from which the download can be resumed */
+private volatile int syncedSize;
 
 private final Context context;
 private final int localFileLocation;
 private final String localFileName;
+private int numSegments = DEFAULT_NUM_SEGMENTS;
 
 public static class Request extends Download.Request
 {
     private static final long serialVersionUID = 4480930156991551348L;
     
-    private final Context context;
+    private transient Context context;
     private final int localFileLocation;
     private final String localFileName;
+    private int numSegments = DEFAULT_NUM_SEGMENTS;
 
     public Request(URL remoteUrl, Context context, int location, String filePath)
     {
@@ -51,17 +114,31 @@ public static class Request extends Download.Request
         this.context = requestToClone.context;
         this.localFileLocation = requestToClone.localFileLocation;
         this.localFileName = new String(requestToClone.localFileName);
+        this.numSegments = requestToClone.numSegments;
     }
 
     public Context getContext()
     {return context; }
     
+    /** Sets the context of a deserialized request */
+    void setContext(Context context)
+    { this.context = context; }
+    
     public int getLocalFileLocation()
     { return localFileLocation; }
     
     public String getLocalFileName()
     { return localFileName;}
     
+    public int getNumSegments()
+    { return numSegments; }
+    
+    /**
+     * Sets the number of segments in which the file is downloaded, see DiskDownload.setNumSegments()
+     * */
+    public void setNumSegments(int numSegments)
+    { this.numSegments = Math.max(1, numSegments); }
+    
     @Override
     public boolean savesToDisk()
     { return true; }
@@ -73,6 +150,7 @@ public DiskDownload(Request request)
     this.context = request.context;
     this.localFileLocation = request.localFileLocation;
     this.localFileName = request.localFileName;
+    this.numSegments = request.numSegments;
 }
 
 public DiskDownload(URL remoteURL, Context context, int fileLocation, String localFilePath)
@@ -92,6 +170,71 @@ public int getLocalFileLocation()
 public String getLocalFileName()
 { return localFileName;}
 
+public int getNumSegments()
+{ return numSegments; }
+
+/**
+ * Sets the number of segments in which the file is downloaded, each one with its own connection.
+ * Segments are used only if the server accepts byte ranges, the download doesn't post parameters
+ * and the file is at least MIN_SEGMENT_SIZE bytes per segment; otherwise, a single connection is used.
+ * Changes take effect the next time the download is started.
+ * @param numSegments The number of segments, 1 to disable segmented downloads.
+ * */
+public void setNumSegments(int numSegments)
+{ this.numSegments = Math.max(1, numSegments); }
+
+/**
+ * Returns the path of the temporary file, null if the download hasn't started or has finished.
+ * */
+String getTempFilePath()
+{ return tempFilePath; }
+
+/**
+ * Returns the number of bytes of the temporary file from which the download can be resumed.
+ * */
+int getSyncedSize()
+{ return syncedSize; }
+
+/**
+ * Deletes the temporary file, unless the download is running.
+ * */
+synchronized void deleteTempFile()
+{
+    if(state != State.Running && tempFilePath != null) {
+        IOUtils.DeleteFile(localFileLocation, tempFilePath, context);
+        tempFilePath = null;
+        syncedSize = 0;
+    }
+}
+
+/**
+ * Creates a request equivalent to the one the download was created with.
+ * */
+Request createRequest()
+{
+    final Request r = new Request(remoteURL, context, localFileLocation, localFileName, tag);
+    r.postParameters = postParameters;
+    r.setAuthentication(user, password);
+    r.setNumSegments(numSegments);
+    r.setPriority(priority);
+    r.setDeadline(deadline);
+    r.setExpectedSize(expectedSize);
+    return r;
+}
+
+/**
+ * Sets a temporary file left by a previous run of the download, to be resumed when it starts.
+ * @param tempFilePath The temporary file's path, in the download's location
+ * @param syncedSize The number of bytes of the file known to be on disk
+ * */
+synchronized void restoreTempFile(String tempFilePath, int syncedSize)
+{
+    if(state == State.Running)
+        return;
+    this.tempFilePath = tempFilePath;
+    this.syncedSize = syncedSize;
+}
+
 @Override
 public final boolean savesToDisk()
 { return true; }
@@ -110,6 +253,7 @@ public synchronized boolean stop()
     if( super.stop() && tempFilePath != null) {
         IOUtils.DeleteFile(localFileLocation, tempFilePath, context);
         tempFilePath = null;
+        syncedSize = 0;
         return true;
     } else {
         return false;
@@ -137,52 +281,327 @@ public long getDataLength()
 public boolean isCorrect()
 { return getDataLength()>0;}
 
+/**
+ * Returns the temporary file, creating its directory if needed.
+ * */
+private File getTempFile()
+{
+    // files in the private directory are created by name, as in IOUtils.GetFileOutputStream()
+    final String path = localFileLocation == IOUtils.LOCATION_PRIVATE ? IOUtils.LastPathComponent(tempFilePath) : tempFilePath;
+    final File tempFile = IOUtils.GetFile(localFileLocation, path, context);
+    final File directory = tempFile.getParentFile();
+    if(directory != null)
+        directory.mkdirs();
+    return tempFile;
+}
+
 protected class DownloadTask extends Download.DownloadTask
 {
+    /** The data goes straight from the connection to the file, never accumulated in memory */
+    @Override
+    protected ByteArrayBuffer createBuffer()
+    { return null; }
+    
+    @Override
+    protected Integer doInBackground(Void ... unused)
+    {
+        downloadedSize = prepareTempFile();
+        return super.doInBackground(unused);
+    }
+    
+    /**
+     * Creates the temporary file's path, or truncates an existing temporary file to its synced size.
+     * @return The number of bytes from which the download is resumed
+     * */
+    private int prepareTempFile()
+    {
+        if(tempFilePath == null) {
+            final Random r = new Random(System.currentTimeMillis());
+            tempFilePath = localFileName + ".dl_" + r.nextInt(1000000);
+            syncedSize = 0;
+            return 0;
+        }
+        
+        final File tempFile = getTempFile();
+        final long resumeSize = Math.min(tempFile.length(), syncedSize);
+        if(resumeSize <= 0 || postParameters.length() > 0)
+            return 0;
+        
+        try {
+            final RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+            try {
+                raf.setLength(resumeSize);
+            } finally {
+                raf.close();
+            }
+            Logger.info(getClass(), "Resuming " + remoteURL + " from byte " + resumeSize);
+            return (int) resumeSize;
+        } catch (IOException e) {
+            Logger.error(getClass(), "Can't resume " + remoteURL + " from " + tempFilePath + ": " + e.getMessage());
+            return 0;
+        }
+    }
+    
     @Override
     protected void readFromStream() throws IOException
     {
-        final Random r = new Random(System.currentTimeMillis());
-        tempFilePath = localFileName + ".dl_" + r.nextInt(1000000);
+        final int segments = segmentsForConnection();
+        if(segments > 1) {
+            // the preallocated file can't be resumed
+            syncedSize = 0;
+            if(!readSegments(segments)) {
+                // the file is preallocated, so an incomplete one can't be told apart from a complete one
+                IOUtils.DeleteFile(localFileLocation, tempFilePath, context);
+                tempFilePath = null;
+                throw new IOException("Segmented download of " + remoteURL + " interrupted");
+            }
+            
+            IOUtils.MoveFile(localFileLocation, tempFilePath, localFileName, context);
+            tempFilePath = null;
+            return;
+        }
         
-        tempOutputStream = IOUtils.GetFileOutputStream(localFileLocation, tempFilePath, context);
+        // downloadedSize is 0 if the server didn't accept the range, then the file is overwritten
+        final boolean resumable = postParameters.length() == 0;
+        if(downloadedSize > 0) {
+            tempOutputStream = new FileOutputStream(getTempFile(), true);
+        } else {
+            syncedSize = 0;
+            tempOutputStream = IOUtils.GetFileOutputStream(localFileLocation, tempFilePath, context);
+        }
         
-        byte [] tempArray = new byte[REMOTE_READ_BYTES];
-        int readBytes = connectionStream.read(tempArray);
+        final FileChannel channel = tempOutputStream.getChannel();
+        try {
+            final ReadableByteChannel source = Channels.newChannel(connectionStream);
+            final ByteBuffer transferBuffer = ByteBuffer.allocateDirect(REMOTE_READ_BYTES);
+            
+            int readBytes = source.read(transferBuffer);
+            while(readBytes>0 && state == State.Running) {
+                transferBuffer.flip();
+                while(transferBuffer.hasRemaining()) {
+                    channel.write(transferBuffer);
+                }
+                transferBuffer.clear();
+                downloadedSize += readBytes;
+                
+                if(totalSize > 0)
+                    rate = (float)downloadedSize / (float) totalSize;
+                
+                if(downloadedSize-lastNotificationSize > notificationSizeDif || downloadedSize == totalSize) {
+                    lastNotificationSize = downloadedSize;
+                    publishProgress(rate);
+                }
+                
+                if(resumable && downloadedSize - syncedSize >= SYNC_INTERVAL_BYTES) {
+                    channel.force(false);
+                    syncedSize = downloadedSize;
+                }
+                
+                readBytes = source.read(transferBuffer);
+            }
+        } finally {
+            try {
+                if(resumable) {
+                    channel.force(false);
+                    syncedSize = downloadedSize;
+                }
+            } finally {
+                tempOutputStream.close();
+            }
+        }
         
-        while(readBytes>0 && state == State.Running) {
-            buffer.append(tempArray, 0, readBytes);
-            downloadedSize += readBytes;
+        // the temporary file is kept, to resume the download
+        if(totalSize > 0 && downloadedSize < totalSize)
+            throw new IOException("Download of " + remoteURL + " interrupted at byte " + downloadedSize + " of " + totalSize);
+        
+        IOUtils.MoveFile(localFileLocation, tempFilePath, localFileName, context);
+        tempFilePath = null;
+        syncedSize = 0;
+    }
+    
+    /**
+     * Returns the number of segments in which the file can be downloaded, given the response
+     * to the first request. 1 if the server doesn't accept ranges or the file is small.
+     * */
+    private int segmentsForConnection()
+    {
+        if(numSegments <= 1 || downloadedSize > 0 || postParameters.length() > 0 || totalSize < 2 * MIN_SEGMENT_SIZE)
+            return 1;
+        if(!"bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges")))
+            return 1;
+        return Math.min(numSegments, totalSize / MIN_SEGMENT_SIZE);
+    }
+    
+    /**
+     * Downloads the file in segments, each one in its own connection, into a preallocated temporary file.
+     * The first segment is read from the already open connection, in this thread, which also publishes
+     * the progress of all of them. If any segment fails, the others are stopped.
+     * @return true if all segments have been downloaded, false if the download has been paused or stopped
+     * */
+    private boolean readSegments(int segments) throws IOException
+    {
+        final File tempFile = getTempFile();
+        final RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+        try {
+            raf.setLength(totalSize);
+            final FileChannel channel = raf.getChannel();
+            
+            // the first request may have been redirected
+            final URL segmentsURL = connection.getURL();
+            final long segmentSize = totalSize / segments;
+            final AtomicLong downloaded = new AtomicLong();
+            final AtomicBoolean failed = new AtomicBoolean();
+            
+            final List<Future<?>> futures = new ArrayList<Future<?>>(segments - 1);
+            for(int i=1; i<segments; ++i) {
+                final long start = i * segmentSize;
+                final long end = (i == segments-1) ? totalSize : start + segmentSize;
+                futures.add(SegmentExecutor.submit(new SegmentTask(segmentsURL, start, end, channel, downloaded, failed)));
+            }
+            
+            try {
+                readSegment(connectionStream, channel, 0, segmentSize, downloaded, failed, true);
+                for(Future<?> f : futures) {
+                    while(!waitForSegment(f)) {
+                        publishSegmentsProgress(downloaded.get());
+                    }
+                }
+            } catch (IOException e) {
+                failed.set(true);
+                throw e;
+            } finally {
+                if(failed.get() || state != State.Running) {
+                    for(Future<?> f : futures) {
+                        f.cancel(true);
+                    }
+                }
+            }
             
-            readBytes = connectionStream.read(tempArray);
+            publishSegmentsProgress(downloaded.get());
+            if(downloaded.get() < totalSize)
+                return false;
             
-            if(totalSize > 0)
-                rate = (float)downloadedSize / (float) totalSize;
+            channel.force(false);
+            return true;
+        } finally {
+            raf.close();
+        }
+    }
+    
+    /**
+     * Waits a while for a segment to finish.
+     * @return true if the segment has finished, false if it's still running
+     * @throws IOException if the segment failed
+     * */
+    private boolean waitForSegment(Future<?> segment) throws IOException
+    {
+        try {
+            segment.get(SEGMENT_PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading segments");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if(cause instanceof IOException) {
+                throw (IOException) cause;
+            } else {
+                throw new IOException("Segment failed: " + cause);
+            }
+        }
+    }
+    
+    /**
+     * Reads a byte range from a stream, writing it at its position in the file.
+     * @param publish Whether to publish the progress of all segments, only from the task's thread
+     * */
+    private void readSegment(InputStream is, FileChannel channel, long start, long end,
+            AtomicLong downloaded, AtomicBoolean failed, boolean publish) throws IOException
+    {
+        final ReadableByteChannel source = Channels.newChannel(is);
+        final ByteBuffer transferBuffer = ByteBuffer.allocateDirect(REMOTE_READ_BYTES);
+        long position = start;
+        while(position < end && state == State.Running && !failed.get()) {
+            transferBuffer.clear();
+            transferBuffer.limit((int) Math.min(transferBuffer.capacity(), end - position));
+            final int readBytes = source.read(transferBuffer);
+            if(readBytes < 0)
+                throw new IOException("Connection closed at byte " + position + " of segment [" + start + ", " + end + ")");
             
-            if(downloadedSize-lastNotificationSize > notificationSizeDif || downloadedSize == totalSize) {
-                lastNotificationSize = downloadedSize;
-                publishProgress(rate);
-                //Logger.error(getClass(), "------> "+readBytes);
+            transferBuffer.flip();
+            while(transferBuffer.hasRemaining()) {
+                position += channel.write(transferBuffer, position);
             }
             
-            if(buffer.length() > DEFAULT_BUFFER_SIZE) {
-                tempOutputStream.write(buffer.buffer(), 0, buffer.length());
-                buffer.clear();
-                tempOutputStream.flush();
+            final long total = downloaded.addAndGet(readBytes);
+            if(publish) {
+                publishSegmentsProgress(total);
             }
         }
+    }
+    
+    private void publishSegmentsProgress(long total)
+    {
+        downloadedSize = (int) total;
+        rate = (float)downloadedSize / (float) totalSize;
+        if(downloadedSize-lastNotificationSize > notificationSizeDif || downloadedSize == totalSize) {
+            lastNotificationSize = downloadedSize;
+            publishProgress(rate);
+        }
+    }
+    
+    /**
+     * Downloads a segment with its own connection, requesting its byte range.
+     * */
+    private final class SegmentTask
+    implements Callable<Void>
+    {
+        private final URL url;
+        private final long start, end;
+        private final FileChannel channel;
+        private final AtomicLong downloaded;
+        private final AtomicBoolean failed;
         
-        tempOutputStream.write(buffer.buffer(), 0, buffer.length());
-        tempOutputStream.flush();
-        tempOutputStream.close();
-
-        // Release memory!!!
-        buffer.clear();
-        buffer = null;        
-        byteArray = null;
+        SegmentTask(URL url, long start, long end, FileChannel channel, AtomicLong downloaded, AtomicBoolean failed)
+        {
+            this.url = url;
+            this.start = start;
+            this.end = end;
+            this.channel = channel;
+            this.downloaded = downloaded;
+            this.failed = failed;
+        }
         
-        IOUtils.MoveFile(localFileLocation, tempFilePath, localFileName, context);
-        tempFilePath = null;
+        @Override
+        public Void call() throws IOException
+        {
+            HttpURLConnection segmentConnection = null;
+            InputStream is = null;
+            try {
+                segmentConnection = openConnection(url);
+                segmentConnection.setRequestProperty("Range", "bytes=" + start + "-" + (end-1));
+                segmentConnection.connect();
+                
+                final int responseCode = segmentConnection.getResponseCode();
+                if(responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                    throw new IOException("Server didn't accept range [" + start + ", " + end + ") of " + url + ", response code: " + responseCode);
+                }
+                
+                is = segmentConnection.getInputStream();
+                readSegment(is, channel, start, end, downloaded, failed, false);
+                return null;
+            } catch (IOException e) {
+                failed.set(true);
+                Logger.error(getClass(), "Error downloading segment of " + url + ": " + e.getMessage());
+                throw e;
+            } finally {
+                IOUtils.CloseQuietly(is);
+                if(segmentConnection != null)
+                    segmentConnection.disconnect();
+            }
+        }
     }
 
 }
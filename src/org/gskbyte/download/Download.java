@@ -37,6 +37,9 @@ public static abstract class Request implements Serializable
     protected final int tag;
     protected String postParameters = "";
     protected String user = "", password = "";
+    protected int priority = PRIORITY_DEFAULT;
+    protected long deadline = NO_DEADLINE;
+    protected int expectedSize = -1;
     
     public abstract boolean savesToDisk();
     
@@ -55,6 +58,9 @@ public static abstract class Request implements Serializable
         this.remoteURL = requestToClone.remoteURL;
         this.tag = requestToClone.tag;
         this.postParameters = requestToClone.postParameters;
+        this.priority = requestToClone.priority;
+        this.deadline = requestToClone.deadline;
+        this.expectedSize = requestToClone.expectedSize;
     }
     
     public URL getRemoteURL()
@@ -72,6 +78,37 @@ public static abstract class Request implements Serializable
     public String getPassword()
     { return password; }
     
+    public int getPriority()
+    { return priority; }
+    
+    /**
+     * Sets the priority of the download in a DownloadManager's queue. Downloads with higher
+     * priority start first.
+     * */
+    public void setPriority(int priority)
+    { this.priority = priority; }
+    
+    public long getDeadline()
+    { return deadline; }
+    
+    /**
+     * Sets the time before which the download should start, as in System.currentTimeMillis().
+     * Among downloads with the same priority, the ones with earlier deadlines start first,
+     * followed by the ones without a deadline.
+     * */
+    public void setDeadline(long deadline)
+    { this.deadline = deadline; }
+    
+    public int getExpectedSize()
+    { return expectedSize; }
+    
+    /**
+     * Sets an estimation of the size of the file, in bytes. Among downloads with the same priority
+     * and deadline, smaller files start first, followed by the ones with unknown size.
+     * */
+    public void setExpectedSize(int expectedSize)
+    { this.expectedSize = expectedSize; }
+    
     // Should be safer!
     public void addPostParameter(String name, String value)
     {
@@ -100,6 +137,13 @@ public interface Listener
 public enum State
 { Stopped, Running, Paused, Failed, Finished}
 
+private static final int    HTTP_RANGE_NOT_SATISFIABLE  = 416;
+/** Priorities for queued downloads. Downloads with higher priority start first. */
+public static final int     PRIORITY_LOW                = -10;
+public static final int     PRIORITY_DEFAULT            = 0;
+public static final int     PRIORITY_HIGH               = 10;
+public static final long    NO_DEADLINE                 = 0;
+
 public static final int     REMOTE_READ_BYTES           = 16 * 1024; // Read every 16 KB
 public static final int     DEFAULT_BUFFER_SIZE         = 256 * 1024; // Memory cache size
 protected static int        DefaultNotificationSize     = 64 * 1024; // Notify every 64 KB
@@ -116,6 +160,8 @@ protected boolean followRedirections = true;
 
 protected int totalSize;
 protected int downloadedSize;
+/** Bytes already downloaded when the connection was accepted, from which the download was resumed */
+protected int resumedSize;
 
 protected float rate;
 protected long startTime, endTime;
@@ -125,6 +171,12 @@ protected float notificationMinRate = DefaultNotificationRate;
 
 protected int numRetries = 0;
 
+protected int priority = PRIORITY_DEFAULT;
+protected long deadline = NO_DEADLINE;
+protected int expectedSize = -1;
+/** Order among queued downloads with the same priority, deadline and size, set by the DownloadManager */
+long queueOrderKey;
+
 protected State state = State.Stopped;
 protected transient ByteArrayBuffer byteArray;
 
@@ -152,6 +204,9 @@ protected Download(Request request)
     this.postParameters = request.postParameters;
     this.user = request.user;
     this.password = request.password;
+    this.priority = request.priority;
+    this.deadline = request.deadline;
+    this.expectedSize = request.expectedSize;
     
     resetTemporalStuff();
 }
@@ -192,6 +247,9 @@ public float getRate()
 public long getStartTime()
 { return startTime; }
 
+int getResumedSize()
+{ return resumedSize; }
+
 public long getEndTime()
 { return endTime; }
 
@@ -216,6 +274,25 @@ public int getNumRetries()
 public void setNumRetries(int numRetries)
 { this.numRetries = numRetries; }
 
+public int getPriority()
+{ return priority; }
+
+/**
+ * Sets the priority. Queued downloads must be reprioritized with DownloadManager.reprioritize().
+ * */
+void setPriority(int priority)
+{ this.priority = priority; }
+
+public long getDeadline()
+{ return deadline; }
+
+/**
+ * Returns the size of the file, if it has been received in a previous run, or the request's estimation.
+ * -1 if unknown.
+ * */
+public int getExpectedSize()
+{ return expectedSize; }
+
 @SuppressLint("NewApi")
 public synchronized boolean resume()
 {
@@ -284,7 +361,7 @@ public String getDataAsString() throws IOException
 
 protected synchronized void resetTemporalStuff()
 {
-    totalSize = downloadedSize = 0;
+    totalSize = downloadedSize = resumedSize = 0;
     rate = 0;
     startTime = endTime = -1;
     
@@ -298,10 +375,86 @@ protected abstract class DownloadTask extends AsyncTask<Void, Float, Integer>
     protected ByteArrayBuffer buffer;
     protected HttpURLConnection connection;
     protected InputStream connectionStream;
+    /** Whether the connection has been accepted by the server, the download finishes even if reading fails */
+    protected boolean connected;
 
     protected InputStream initConnectionInputStream(URL url) throws IOException
     {
-        connection= (HttpURLConnection) url.openConnection();
+        connection = openConnection(url);
+        
+        // to be able to resume downloads
+        if(downloadedSize>0)
+            connection.setRequestProperty("Range", "bytes=" + downloadedSize + "-");
+        
+        connection.connect();
+
+        // Make sure response code is in the 200 range.
+        int responseCode = connection.getResponseCode();
+        if(responseCode == HTTP_RANGE_NOT_SATISFIABLE && downloadedSize>0) {
+            Logger.debug(getClass(), "Range not satisfiable for ["+url+"], downloading it again");
+            connection.disconnect();
+            downloadedSize = 0;
+            return initConnectionInputStream(url);
+        }
+        if (responseCode / 100 != 2) {
+            if(responseCode / 100 == 3 && followRedirections) { // try redirection
+                String newUrlString = connection.getHeaderField("Location");
+                Logger.debug(getClass(), "Redirection code " + responseCode + " received, redirecting to " + newUrlString);
+
+                URL newURL = new URL(newUrlString);
+                return initConnectionInputStream(newURL);
+            }
+        	Logger.debug(getClass(), "Error connecting to ["+url+"], response code: "+responseCode);
+            return null;
+        }
+
+        // Check for valid content length.
+        totalSize = connection.getContentLength(); // could be 0 or -1, be careful!!!
+        if(downloadedSize>0) {
+            if(responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                if(totalSize > 0)
+                    totalSize += downloadedSize;
+            } else { // the range was ignored, the whole file comes again
+                downloadedSize = 0;
+            }
+        }
+        resumedSize = downloadedSize;
+        if(totalSize > 0)
+            expectedSize = totalSize;
+        if(totalSize > 0) {
+            long percentageSize = (long) (notificationMinRate * totalSize);
+            notificationSizeDif = percentageSize < notificationMinSize ? percentageSize : notificationMinSize;
+        } else {
+            notificationSizeDif = notificationMinSize;
+        }
+        
+        buffer = createBuffer();
+        connected = true;
+        startTime = System.currentTimeMillis();
+        
+        InputStream stream = connection.getInputStream();
+        
+        return stream;
+    }
+    
+    /**
+     * Creates the buffer in which the data is read, once the total size is known.
+     * @return The buffer, or null if the data doesn't go through memory
+     * */
+    protected ByteArrayBuffer createBuffer()
+    {
+        // do some preallocation if needed
+        int capacity = (int) ((totalSize<DEFAULT_BUFFER_SIZE && totalSize>0) ? totalSize : DEFAULT_BUFFER_SIZE);
+        return new ByteArrayBuffer(capacity);
+    }
+    
+    /**
+     * Creates a connection configured with the download's parameters, not connected yet.
+     * Posts the download's parameters, if any.
+     * */
+    protected HttpURLConnection openConnection(URL url) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
         
     	String protocol = url.getProtocol();
     	if(protocol.equals("https")) {
@@ -341,43 +494,7 @@ protected abstract class DownloadTask extends AsyncTask<Void, Float, Integer>
 	    	Authenticator.setDefault(au);
         }
         
-        // to be able to resume downloads
-        if(downloadedSize>0)
-            connection.setRequestProperty("Range", "bytes=" + downloadedSize + "-");
-        
-        connection.connect();
-
-        // Make sure response code is in the 200 range.
-        int responseCode = connection.getResponseCode();
-        if (responseCode / 100 != 2) {
-            if(responseCode / 100 == 3 && followRedirections) { // try redirection
-                String newUrlString = connection.getHeaderField("Location");
-                Logger.debug(getClass(), "Redirection code " + responseCode + " received, redirecting to " + newUrlString);
-
-                URL newURL = new URL(newUrlString);
-                return initConnectionInputStream(newURL);
-            }
-        	Logger.debug(getClass(), "Error connecting to ["+url+"], response code: "+responseCode);
-            return null;
-        }
-
-        // Check for valid content length.
-        totalSize = connection.getContentLength(); // could be 0 or -1, be careful!!!
-        if(totalSize > 0) {
-            long percentageSize = (long) (notificationMinRate * totalSize);
-            notificationSizeDif = percentageSize < notificationMinSize ? percentageSize : notificationMinSize;
-        } else {
-            notificationSizeDif = notificationMinSize;
-        }
-        
-        // do some preallocation if needed
-        int capacity = (int) ((totalSize<DEFAULT_BUFFER_SIZE && totalSize>0) ? totalSize : DEFAULT_BUFFER_SIZE);
-        buffer = new ByteArrayBuffer(capacity);
-        startTime = System.currentTimeMillis();
-        
-        InputStream stream = connection.getInputStream();
-        
-        return stream;
+        return connection;
     }
     
     protected abstract void readFromStream() throws IOException;
@@ -400,7 +517,7 @@ protected abstract class DownloadTask extends AsyncTask<Void, Float, Integer>
             Logger.error(getClass(), "Error creating connection to URL "+remoteURL + ": "+e.getMessage());
             downloadSuccessInBackgroundThread = false;
         } finally {
-            if(buffer!=null/* && buffer.length() >= totalSize*/) {
+            if(connected/* && buffer.length() >= totalSize*/) {
                 byteArray = buffer;
                 buffer = null;
                 
@@ -0,0 +1,161 @@
+package org.gskbyte.download;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.gskbyte.util.IOUtils;
+import org.gskbyte.util.Logger;
+
+import android.content.Context;
+
+/**
+ * Durable record of the pending disk downloads of a DownloadManager, with the temporary
+ * files and the number of bytes from which they can be resumed if the process dies.
+ * See DownloadManager.setJournal() and DownloadManager.restoreJournal().
+ *
+ * Each write replaces the whole journal: it's written to a temporary file, synced and renamed
+ * over the previous one, so the journal is always a complete snapshot. Writes are done in a
+ * background thread; if several snapshots are written while one is being saved, only the last
+ * one is saved.
+ *
+ * The journal contains the requests' credentials, so it should be kept in private storage.
+ * */
+public class DownloadJournal
+{
+
+/**
+ * A pending download: its request, and the temporary file with the bytes already downloaded.
+ * */
+static final class Entry implements Serializable
+{
+    private static final long serialVersionUID = -2291743318410875082L;
+
+    final DiskDownload.Request request;
+    final String tempFilePath;
+    final int syncedSize;
+
+    Entry(DiskDownload download)
+    {
+        this.request = download.createRequest();
+        this.tempFilePath = download.getTempFilePath();
+        this.syncedSize = download.getSyncedSize();
+    }
+}
+
+private static final ExecutorService WriteExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r)
+    {
+        final Thread t = new Thread(r, "DownloadJournal");
+        t.setDaemon(true);
+        return t;
+    }
+});
+
+private final File file;
+private List<Entry> pendingEntries;
+
+private final Runnable writeRunnable = new Runnable() {
+    @Override
+    public void run()
+    {
+        final List<Entry> entries;
+        synchronized (DownloadJournal.this) {
+            entries = pendingEntries;
+            pendingEntries = null;
+        }
+        save(entries);
+    }
+};
+
+/**
+ * Creates a journal stored in the given file.
+ * */
+public DownloadJournal(File file)
+{
+    this.file = file;
+}
+
+/**
+ * Creates a journal stored in the app's private files directory.
+ * */
+public DownloadJournal(Context context, String fileName)
+{
+    this(new File(context.getFilesDir(), fileName));
+}
+
+public File getFile()
+{ return file; }
+
+/**
+ * Replaces the journal's contents, in the background.
+ * */
+synchronized void write(List<Entry> entries)
+{
+    final boolean scheduled = pendingEntries != null;
+    pendingEntries = entries;
+    if(!scheduled)
+        WriteExecutor.execute(writeRunnable);
+}
+
+private void save(List<Entry> entries)
+{
+    final File tempFile = new File(file.getPath() + ".tmp");
+    FileOutputStream fos = null;
+    try {
+        fos = new FileOutputStream(tempFile);
+        final ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(fos));
+        oos.writeObject(entries);
+        oos.flush();
+        fos.getFD().sync();
+        oos.close();
+        fos = null;
+
+        if(!tempFile.renameTo(file))
+            throw new IOException("Can't rename " + tempFile + " to " + file);
+    } catch (IOException e) {
+        Logger.error(getClass(), "Error writing download journal " + file + ": " + e.getMessage());
+    } finally {
+        IOUtils.CloseQuietly(fos);
+    }
+}
+
+/**
+ * Reads the journal's entries. Returns an empty list if the journal doesn't exist or can't be read.
+ * */
+@SuppressWarnings("unchecked")
+List<Entry> read()
+{
+    if(!file.exists())
+        return Collections.emptyList();
+
+    ObjectInputStream ois = null;
+    try {
+        ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+        return new ArrayList<Entry>((List<Entry>) ois.readObject());
+    } catch (IOException e) {
+        Logger.error(getClass(), "Error reading download journal " + file + ": " + e.getMessage());
+    } catch (ClassNotFoundException e) {
+        Logger.error(getClass(), "Error reading download journal " + file + ": " + e.getMessage());
+    } catch (ClassCastException e) {
+        Logger.error(getClass(), "Invalid download journal " + file + ": " + e.getMessage());
+    } finally {
+        IOUtils.CloseQuietly(ois);
+    }
+    return Collections.emptyList();
+}
+
+}
@@ -2,10 +2,12 @@ package org.gskbyte.download;
 
 import java.lang.ref.WeakReference;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
@@ -14,6 +16,7 @@ import javax.net.ssl.X509TrustManager;
 
 import org.gskbyte.download.Download.State;
 import org.gskbyte.listener.Listenable;
+import org.gskbyte.util.IOUtils;
 import org.gskbyte.util.Logger;
 
 import android.content.Context;
@@ -38,16 +41,85 @@ implements Download.Listener
         
     public static final int   DEFAULT_NUM_THREADS           = 3;
     public static final float DEFAULT_NOTIFICATION_INTERVAL = 0.01f; // every 1%
+    /** Maximum number of threads in adaptive mode, see setAdaptiveThreads() */
+    public static final int   DEFAULT_WIFI_MAX_THREADS      = 6;
+    public static final int   DEFAULT_MOBILE_MAX_THREADS    = 2;
+    /** Time during which the throughput is measured before adapting the number of threads */
+    public static final int   ADAPTIVE_INTERVAL_MILLIS      = 2000;
+    /** Relative throughput change below which two measures are considered equal */
+    private static final float ADAPTIVE_THROUGHPUT_TOLERANCE = 0.1f;
+    /** Threads are removed if the servers take this many times longer to respond than the fastest response seen */
+    private static final float ADAPTIVE_LATENCY_FACTOR      = 3;
+    /** Minimum time to respond which is considered slow, to ignore the noise of fast responses */
+    private static final int   ADAPTIVE_MIN_SLOW_LATENCY_MILLIS = 500;
+    /** Minimum time between journal updates caused by the progress of the downloads */
+    public static final int   JOURNAL_INTERVAL_MILLIS       = 2000;
     
     private int numThreads = DEFAULT_NUM_THREADS;
+    private boolean adaptiveThreads;
+    private int maxThreads = DEFAULT_NUM_THREADS;
+    
+    /**
+     * Transfer stats of a running download, from the main thread.
+     * */
+    private static final class Transfer
+    {
+        long startedTime = -1;
+        int lastDownloadedSize = -1;
+    }
+    
+    private final SparseArray<Transfer> transfers = new SparseArray<Transfer>();
+    private long sampleStartTime, sampleBytes, sampleLatencySum;
+    private int sampleLatencyCount;
+    private long bestLatency = -1;
+    private float throughput, lastThroughput;
+    private int threadStep = 1;
     private float rateNotificationInterval = DEFAULT_NOTIFICATION_INTERVAL;
     
     private float downloadRate;
     private Download.State state;
     
+    private DownloadJournal journal;
+    private long lastJournalTime;
+    
     protected float lastNotifiedRate;
     protected final Map<URL, Download> downloadsForUrls = new HashMap<URL, Download>();
-    protected final List<Download> queued = new LinkedList<Download>();
+    
+    /**
+     * Order in which queued downloads start: higher priority first; then the ones queued with
+     * downloadFirst; then earlier deadlines, smaller expected sizes, and order of queueing.
+     * */
+    protected static final Comparator<Download> QueueOrder = new Comparator<Download>() {
+        @Override
+        public int compare(Download a, Download b)
+        {
+            if(a.priority != b.priority)
+                return a.priority > b.priority ? -1 : 1;
+            
+            final boolean firstA = a.queueOrderKey < 0, firstB = b.queueOrderKey < 0;
+            if(firstA != firstB)
+                return firstA ? -1 : 1;
+            
+            if(a.deadline != b.deadline) {
+                if(a.deadline == Download.NO_DEADLINE)
+                    return 1;
+                if(b.deadline == Download.NO_DEADLINE)
+                    return -1;
+                return a.deadline < b.deadline ? -1 : 1;
+            }
+            
+            final int sizeA = a.expectedSize > 0 ? a.expectedSize : Integer.MAX_VALUE;
+            final int sizeB = b.expectedSize > 0 ? b.expectedSize : Integer.MAX_VALUE;
+            if(sizeA != sizeB)
+                return sizeA < sizeB ? -1 : 1;
+            
+            return a.queueOrderKey < b.queueOrderKey ? -1 : (a.queueOrderKey == b.queueOrderKey ? 0 : 1);
+        }
+    };
+    
+    protected final PriorityQueue<Download> queued = new PriorityQueue<Download>(11, QueueOrder);
+    /* Order keys of queued downloads, see QueueOrder */
+    private long lastQueueOrderKey, firstQueueOrderKey;
     protected final SparseArray<Download> finished = new SparseArray<Download>(),
                                           failed = new SparseArray<Download>(),
                                           downloading = new SparseArray<Download>();
@@ -104,11 +176,71 @@ implements Download.Listener
     public int getNumThreads()
     { return numThreads; }
 
+    /**
+     * Sets a fixed number of concurrent downloads, disabling adaptive mode.
+     * */
     public void setNumThreads(int numThreads)
     {
         this.numThreads = numThreads;
+        this.maxThreads = numThreads;
+        this.adaptiveThreads = false;
         updateRunningQueue();
     }
+    
+    public boolean isAdaptiveThreads()
+    { return adaptiveThreads; }
+    
+    public int getMaxThreads()
+    { return maxThreads; }
+    
+    /**
+     * Enables adaptive mode, with limits that depend on the current connection: on Wi-Fi,
+     * it starts with DEFAULT_NUM_THREADS and can grow up to DEFAULT_WIFI_MAX_THREADS. On mobile
+     * connections, it starts with one thread and can grow up to DEFAULT_MOBILE_MAX_THREADS.
+     * Call it again when the connection changes.
+     * Requires permission android.permission.ACCESS_NETWORK_STATE.
+     * */
+    public void setAdaptiveThreads(Context context)
+    {
+        if(IsConnectionWifi(context)) {
+            setAdaptiveThreads(DEFAULT_NUM_THREADS, DEFAULT_WIFI_MAX_THREADS);
+        } else if(IsConnectionMobile(context)) {
+            setAdaptiveThreads(1, DEFAULT_MOBILE_MAX_THREADS);
+        } else {
+            setAdaptiveThreads(DEFAULT_NUM_THREADS, DEFAULT_NUM_THREADS);
+        }
+    }
+    
+    /**
+     * Enables adaptive mode: every ADAPTIVE_INTERVAL_MILLIS in which there are queued downloads,
+     * the number of threads moves one step in the direction that increases the throughput.
+     * When the throughput stays the same, or the servers start taking much longer to respond,
+     * threads are removed, so that slow links aren't shared by too many downloads.
+     * Running downloads are never stopped; removed threads aren't used for new downloads.
+     * @param initialThreads The number of threads to start with
+     * @param maxThreads The maximum number of threads
+     * */
+    public synchronized void setAdaptiveThreads(int initialThreads, int maxThreads)
+    {
+        this.maxThreads = Math.max(1, maxThreads);
+        this.numThreads = Math.max(1, Math.min(initialThreads, this.maxThreads));
+        this.adaptiveThreads = true;
+        
+        sampleStartTime = System.currentTimeMillis();
+        sampleBytes = sampleLatencySum = 0;
+        sampleLatencyCount = 0;
+        bestLatency = -1;
+        lastThroughput = 0;
+        threadStep = 1;
+        updateRunningQueue();
+    }
+    
+    /**
+     * Returns the aggregate throughput of the downloads, in bytes per second, measured in
+     * the last ADAPTIVE_INTERVAL_MILLIS. Only available in adaptive mode.
+     * */
+    public float getThroughput()
+    { return throughput; }
 
     public float getRateNotificationInterval()
     { return rateNotificationInterval; }
@@ -119,6 +251,94 @@ implements Download.Listener
         this.lastNotifiedRate = 0; // to force notification
     }
 
+    public DownloadJournal getJournal()
+    { return journal; }
+    
+    /**
+     * Sets the journal in which the pending disk downloads are recorded, so that they can be
+     * restored if the process dies. See restoreJournal().
+     * @param journal The journal, or null to stop recording the downloads
+     * */
+    public synchronized void setJournal(DownloadJournal journal)
+    {
+        this.journal = journal;
+        updateJournal(true);
+    }
+    
+    /**
+     * Queues the disk downloads that were pending in the journal, which resume from their
+     * temporary files if the server accepts byte ranges. Call it before setting the journal,
+     * or before queueing any request, and then resume() the manager.
+     * @param journal The journal to restore from
+     * @param context The context used by the restored downloads
+     * @return The number of downloads queued
+     * */
+    public synchronized int restoreJournal(DownloadJournal journal, Context context)
+    {
+        int count = 0;
+        for(DownloadJournal.Entry entry : journal.read()) {
+            final DiskDownload.Request r = entry.request;
+            r.setContext(context);
+            
+            if(downloadForUrl(r.getRemoteURL()) != null) {
+                // already queued again, the temporary file would be orphaned
+                if(entry.tempFilePath != null)
+                    IOUtils.DeleteFile(r.getLocalFileLocation(), entry.tempFilePath, context);
+                continue;
+            }
+            
+            final DiskDownload d = (DiskDownload) queueRequest(r);
+            if(entry.tempFilePath != null)
+                d.restoreTempFile(entry.tempFilePath, entry.syncedSize);
+            ++count;
+        }
+        
+        Logger.info(getClass(), "Restored " + count + " downloads from journal " + journal.getFile());
+        return count;
+    }
+    
+    /**
+     * Records the queued and running disk downloads in the journal, if any.
+     * @param force Whether to record them even if the journal has been updated recently
+     * */
+    protected synchronized void updateJournal(boolean force)
+    {
+        if(journal == null)
+            return;
+        
+        final long now = System.currentTimeMillis();
+        if(!force && now - lastJournalTime < JOURNAL_INTERVAL_MILLIS)
+            return;
+        lastJournalTime = now;
+        
+        final ArrayList<DownloadJournal.Entry> entries = new ArrayList<DownloadJournal.Entry>();
+        for(int i=0; i<downloading.size(); ++i) {
+            Download d = downloading.valueAt(i);
+            if(d instanceof DiskDownload)
+                entries.add(new DownloadJournal.Entry((DiskDownload) d));
+        }
+        // the queue's iterator isn't in queue order
+        final Download [] queuedDownloads = queued.toArray(new Download[queued.size()]);
+        Arrays.sort(queuedDownloads, QueueOrder);
+        for(Download d : queuedDownloads) {
+            if(d instanceof DiskDownload)
+                entries.add(new DownloadJournal.Entry((DiskDownload) d));
+        }
+        journal.write(entries);
+    }
+    
+    /**
+     * Deletes the temporary files of the disk downloads in an array, which won't be resumed.
+     * */
+    protected void deleteTempFilesForArray(SparseArray<Download> array)
+    {
+        for(int i=0; i<array.size(); ++i) {
+            Download d = array.valueAt(i);
+            if(d instanceof DiskDownload)
+                ((DiskDownload) d).deleteTempFile();
+        }
+    }
+    
     public float getDownloadRate()
     { return downloadRate; }
 
@@ -150,16 +370,41 @@ implements Download.Listener
                 
                 downloadsForUrls.put(r.remoteURL, d);
                 d.addListener(this);
-                if(downloadFirst)
-                    queued.add(0, d);
-                else
-                    queued.add(d);
+                enqueue(d, downloadFirst);
+                updateJournal(true);
             }
         }
         
         return d;
     }
     
+    /**
+     * Adds a download to the queue, after the ones with the same priority, deadline and size.
+     * @param first Whether to add it before all the downloads with the same priority instead
+     * */
+    protected synchronized void enqueue(Download download, boolean first)
+    {
+        download.queueOrderKey = first ? --firstQueueOrderKey : ++lastQueueOrderKey;
+        queued.add(download);
+    }
+    
+    /**
+     * Changes the priority of a download. If it's queued, it's moved to its new place in the queue;
+     * running downloads are not affected until they are queued again.
+     * Finding the download in the queue takes linear time in the number of queued downloads.
+     * @return true if the download was queued
+     * */
+    public synchronized boolean reprioritize(Download download, int priority)
+    {
+        final boolean wasQueued = queued.remove(download);
+        download.setPriority(priority);
+        if(wasQueued) {
+            queued.add(download);
+            updateJournal(true);
+        }
+        return wasQueued;
+    }
+    
     public boolean isFinished()
     { return state == State.Finished; }
     
@@ -243,9 +488,8 @@ implements Download.Listener
     {
         if(failed.size() > 0) {
             for(int i=0; i<failed.size(); ++i) {
-                int key = failed.keyAt(i);
-                Download d = failed.valueAt(key);
-                queued.add(d);
+                Download d = failed.valueAt(i);
+                enqueue(d, false);
             }
             failed.clear();
             
@@ -273,6 +517,7 @@ implements Download.Listener
         removeUrlDownloadMappingForArray(finished);
         finished.clear();
         if(includeFailed) {
+            deleteTempFilesForArray(failed);
             removeUrlDownloadMappingForArray(failed);
             failed.clear();
         }
@@ -283,15 +528,17 @@ implements Download.Listener
         if(state != State.Running) {
             queued.clear();
             for(int i=0; i<downloading.size(); ++i) {
-                int key = downloading.keyAt(i);
-                Download d = downloading.valueAt(key);
+                Download d = downloading.valueAt(i);
                 d.removeListener(this);
             }
             downloading.clear();
+            transfers.clear();
             finished.clear();
+            deleteTempFilesForArray(failed);
             failed.clear();
             downloadsForUrls.clear();
             cleanupListeners();
+            updateJournal(true);
             
             return true;
         } else {
@@ -302,6 +549,10 @@ implements Download.Listener
     @Override
     public void onDownloadStarted(Download download)
     {
+        final Transfer t = transfers.get(download.getUniqueId());
+        if(t != null)
+            t.startedTime = System.currentTimeMillis();
+        
         for(WeakReference<Listener> lref : getListeners()) {
             Listener l = lref.get();
             if(l!=null) l.onDownloadStartedInManager(download, this);
@@ -313,13 +564,14 @@ implements Download.Listener
     {
         boolean isDownloading = isDownloadingDownloadWithId(download.getUniqueId());
         if(isDownloading) {
+            transfers.remove(download.getUniqueId());
             downloading.remove(download.getUniqueId());
             
             if(download.getNumRetries()>0) {
             	Logger.info(getClass(), "Retrying download: " + download);
             	download.setNumRetries(download.getNumRetries()-1);
             	
-            	queued.add(download);
+            	enqueue(download, false);
             	state = State.Running;
             	updateRunningQueue();
             } else {
@@ -336,6 +588,80 @@ implements Download.Listener
         updateRunningQueue();
     }
     
+    /**
+     * Accounts the bytes downloaded since the last call, and the time the server took
+     * to respond, when the first bytes arrive. Resumed downloads are counted from the
+     * offset they were resumed from.
+     * */
+    protected void measureTransfer(Download download)
+    {
+        final Transfer t = transfers.get(download.getUniqueId());
+        if(t == null)
+            return;
+        
+        final int size = download.getDownloadedSize();
+        if(t.lastDownloadedSize < 0) {
+            if(download.getStartTime() > 0 && t.startedTime > 0) {
+                final long latency = download.getStartTime() - t.startedTime;
+                sampleLatencySum += latency;
+                ++sampleLatencyCount;
+                if(bestLatency < 0 || latency < bestLatency)
+                    bestLatency = latency;
+            }
+            if(size > download.getResumedSize())
+                sampleBytes += size - download.getResumedSize();
+        } else if(size > t.lastDownloadedSize) {
+            sampleBytes += size - t.lastDownloadedSize;
+        }
+        t.lastDownloadedSize = size;
+    }
+    
+    /**
+     * In adaptive mode, measures the throughput of the last interval and moves the number of
+     * threads one step. The throughput is only comparable while all threads are busy, so the
+     * number of threads isn't changed while there are no queued downloads.
+     * */
+    protected synchronized void adaptNumThreads()
+    {
+        final long now = System.currentTimeMillis();
+        final long elapsed = now - sampleStartTime;
+        if(!adaptiveThreads || elapsed < ADAPTIVE_INTERVAL_MILLIS)
+            return;
+        
+        throughput = sampleBytes * 1000f / elapsed;
+        final long latency = sampleLatencyCount > 0 ? sampleLatencySum / sampleLatencyCount : -1;
+        sampleStartTime = now;
+        sampleBytes = sampleLatencySum = 0;
+        sampleLatencyCount = 0;
+        
+        final boolean saturated = queued.size() > 0 && downloading.size() >= numThreads;
+        if(!saturated) {
+            lastThroughput = 0;
+            return;
+        }
+        
+        int step;
+        if(latency > ADAPTIVE_MIN_SLOW_LATENCY_MILLIS && latency > ADAPTIVE_LATENCY_FACTOR * bestLatency) {
+            step = -1;
+        } else if(lastThroughput <= 0 || throughput > lastThroughput * (1 + ADAPTIVE_THROUGHPUT_TOLERANCE)) {
+            step = threadStep; // keep going
+        } else if(throughput < lastThroughput * (1 - ADAPTIVE_THROUGHPUT_TOLERANCE)) {
+            step = -threadStep; // the last step was wrong
+        } else {
+            step = -1; // the same throughput with fewer threads
+        }
+        lastThroughput = throughput;
+        threadStep = step;
+        
+        final int newNumThreads = Math.max(1, Math.min(numThreads + step, maxThreads));
+        if(newNumThreads != numThreads) {
+            Logger.debug(getClass(), "Adapting threads from " + numThreads + " to " + newNumThreads
+                    + ", throughput " + (int) throughput + " B/s, latency " + latency + " ms");
+            numThreads = newNumThreads;
+            updateRunningQueue();
+        }
+    }
+    
     protected void notifyCurrentRate(boolean force)
     {
         downloadRate = computeRate();
@@ -360,6 +686,9 @@ implements Download.Listener
                 }
             }
             notifyCurrentRate(false);
+            updateJournal(false);
+            measureTransfer(download);
+            adaptNumThreads();
         } else {
             Logger.error(getClass(), "Download already removed notified rate in manager");
         }
@@ -370,6 +699,8 @@ implements Download.Listener
     {
         boolean isDownloading = isDownloadingDownloadWithId(download.getUniqueId());
         if(isDownloading) {
+            measureTransfer(download);
+            transfers.remove(download.getUniqueId());
             downloading.remove(download.getUniqueId());
             finished.append(download.getUniqueId(), download);
             
@@ -401,10 +732,10 @@ implements Download.Listener
                     int toAdd = (remaining<freeThreads) ? remaining : freeThreads;
                     
                     for(int i=0; i<toAdd; ++i) {
-                        Download d = queued.get(0);
-                        queued.remove(0);
+                        Download d = queued.poll();
                         
                         downloading.put(d.getUniqueId(), d);
+                        transfers.put(d.getUniqueId(), new Transfer());
                         d.resume();
                     }
                 } else {
@@ -424,6 +755,7 @@ implements Download.Listener
         }
         
         notifyCurrentRate(true);
+        updateJournal(true);
     }
     
     public static TrustManager[] trustAllCerts = new TrustManager[]{
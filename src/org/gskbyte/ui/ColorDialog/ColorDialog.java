@@ -38,6 +38,7 @@ public final class ColorDialog extends AlertDialog implements
     
     private int currentColor;
     private final BitmapColorizer colorPreviewColorizer, imagePreviewColorizer;
+    private final Bitmap colorPreviewBitmap, imagePreviewBitmap; // reused for every color
     
     public static interface ColorDialogListener
     {
@@ -67,14 +68,18 @@ public final class ColorDialog extends AlertDialog implements
         this.colorPreview = (ImageView) root.findViewById(R.id.colorPreview);
         Bitmap colorBitmap = BitmapFactory.decodeResource(res, R.drawable.color_preview_fg);
         this.colorPreviewColorizer = new BitmapColorizer(colorBitmap, Bitmap.Config.ARGB_8888);
+        this.colorPreviewBitmap = colorPreviewColorizer.createTargetBitmap();
+        colorPreview.setImageBitmap(colorPreviewBitmap);
         
         imagePreview = (ImageView) root.findViewById(R.id.image);
         if(imageBitmap == null) {
             imagePreview.setVisibility(View.GONE);
             this.imagePreviewColorizer = null;
+            this.imagePreviewBitmap = null;
         } else {
-            imagePreview.setImageBitmap(imageBitmap);
             this.imagePreviewColorizer = new BitmapColorizer(imageBitmap, Bitmap.Config.ARGB_8888);
+            this.imagePreviewBitmap = imagePreviewColorizer.createTargetBitmap();
+            imagePreview.setImageBitmap(imagePreviewBitmap);
         }
         
         redSeek = (SeekBar) root.findViewById(R.id.red);
@@ -162,8 +167,10 @@ public final class ColorDialog extends AlertDialog implements
     private void updatePreview(int color)
     {
         if(imagePreviewColorizer != null) {
-            imagePreview.setImageBitmap(imagePreviewColorizer.colorize(color));
+            imagePreviewColorizer.colorizeInto(imagePreviewBitmap, color, Color.TRANSPARENT);
+            imagePreview.invalidate();
         }
-        colorPreview.setImageBitmap(colorPreviewColorizer.colorize(color));
+        colorPreviewColorizer.colorizeInto(colorPreviewBitmap, color, Color.TRANSPARENT);
+        colorPreview.invalidate();
     }
 }
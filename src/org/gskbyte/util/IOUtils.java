@@ -11,6 +11,7 @@
 package org.gskbyte.util;
 
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -140,6 +141,21 @@ public static byte [] InputStreamToByteArray(InputStream is)
 }
 
 
+/**
+ * Closes a stream or any other Closeable, ignoring errors. Useful in finally blocks.
+ * @param closeable The object to close. Can be null.
+ * */
+public static void CloseQuietly(Closeable closeable)
+{
+    if(closeable != null) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+}
+
 /**
  * Returns true if the external storage (wether if it's emulated or not) can be
  * written
@@ -371,6 +387,30 @@ public static InputStream GetInputStreamCombinedLocation(int p_location, String
     throw lastException;
 }
 
+/**
+ * Returns the file that holds a path in a location that can be a combination of the default ones.
+ * Locations are searched in the same order as in GetInputStreamCombinedLocation(): external -> private.
+ * Assets and resources are not files on their own. Private files are looked up by their last path
+ * component, as in GetInputStream(), because they're stored flat in the app's files directory.
+ * @param location A single location for the file. Can be a combination of locations.
+ * @param path The path for the file.
+ * @param context The context used to access the files.
+ * @return The file, or null if it's not in the private folder or the external storage.
+ * */
+public static File GetFileCombinedLocation(int location, String path, Context context)
+{
+    final int [] fileLocations = {LOCATION_EXTERNAL, LOCATION_PRIVATE};
+    for(int fileLocation : fileLocations) {
+        if( (location & fileLocation) != 0 ) {
+            final String filePath = fileLocation == LOCATION_PRIVATE ? LastPathComponent(path) : path;
+            final File f = GetFile(fileLocation, filePath, context);
+            if(f.exists())
+                return f;
+        }
+    }
+    return null;
+}
+
 /**
  * Returns the integer id for a given drawable name.
  * @param name The image name, without path separators
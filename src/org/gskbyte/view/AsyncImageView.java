@@ -14,7 +14,8 @@ import android.widget.ProgressBar;
 
 /**
  * ImageView that supports loading of bitmaps in background.
- * Shows a ProgressBar if the file needs to be loaded.
+ * Shows a low quality preview of the bitmap while it's loaded, or a ProgressBar
+ * until the preview is available.
  * 
  * Provides interaction with BitmapManager to ease loading of files even more.
  * 
@@ -23,13 +24,14 @@ import android.widget.ProgressBar;
 
 public class AsyncImageView
 extends FrameLayout
-implements AbstractBitmapManager.BackgroundLoadListener
+implements AbstractBitmapManager.ProgressiveLoadListener
 {
 
 private ImageView imageView;
 private ProgressBar progressBar;
 private volatile boolean loading;
 private volatile String path;
+private AbstractBitmapManager manager;
 
 public AsyncImageView(Context context, AttributeSet attrs, int defStyle)
 {
@@ -83,10 +85,20 @@ private synchronized void setBitmap(Bitmap bitmap)
     }
 }
 
-public synchronized void setImageBitmap(AbstractBitmapManager manager, String path)
+public void setImageBitmap(AbstractBitmapManager manager, String path)
+{ setImageBitmap(manager, path, AbstractBitmapManager.PRIORITY_DEFAULT); }
+
+/**
+ * Shows the bitmap for the given path, loading it in background if needed.
+ * If this view was waiting for another bitmap, that load is cancelled.
+ * @param priority The priority for the background load, see AbstractBitmapManager.
+ * */
+public synchronized void setImageBitmap(AbstractBitmapManager manager, String path, int priority)
 {
+    cancelPendingLoad(manager);
     this.path = path;
-    Bitmap bitmap = manager.getInBackground(path, this);
+    this.manager = manager;
+    Bitmap bitmap = manager.getInBackground(path, this, priority);
     if(bitmap != null) {
         setBitmap(bitmap);
     } else {
@@ -94,18 +106,38 @@ public synchronized void setImageBitmap(AbstractBitmapManager manager, String pa
     }
 }
 
-public void setImageBitmap(Bitmap b)
+public synchronized void setImageBitmap(Bitmap b)
 {
+    cancelPendingLoad(null);
     setLoading(false);
     imageView.setImageBitmap(b);
 }
 
-public void setImageResource(int res)
+public synchronized void setImageResource(int res)
 {
+    cancelPendingLoad(null);
     setLoading(false);
     imageView.setImageResource(res);
 }
 
+// cancels loads requested to a manager other than the new one, which will rebind the listener itself
+private void cancelPendingLoad(AbstractBitmapManager newManager)
+{
+    if(manager != null && manager != newManager) {
+        manager.cancelInBackground(this);
+    }
+    manager = null;
+    path = null;
+}
+
+
+@Override
+public synchronized void bitmapPreviewLoadedInManager(Bitmap preview, String loadedPath, AbstractBitmapManager manager)
+{
+    if(loading && loadedPath.equals(this.path)) {
+        setBitmap(preview);
+    }
+}
 
 @Override
 public synchronized void bitmapLoadedInManager(Bitmap bitmap, String loadedPath, AbstractBitmapManager manager)